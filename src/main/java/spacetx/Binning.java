@@ -0,0 +1,293 @@
+package spacetx;
+
+import loci.formats.FormatTools;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.units.quantity.Length;
+import ome.xml.model.primitives.PositiveInteger;
+
+import java.util.Arrays;
+
+/**
+ * Reduces planes by combining each block of factor x factor pixels into a
+ * single pixel, either by summing (saturating at the limits of the pixel
+ * type), averaging or taking the maximum. The pixel type is unchanged.
+ *
+ * Rows and columns which do not fill a whole block are dropped. Planes are
+ * processed row by row into an accumulator of a single output row, so that
+ * the same code bins whole planes and strips whose height is a multiple of
+ * the factor.
+ */
+public class Binning {
+
+    public enum Mode {
+        sum, mean, max
+    }
+
+    /**
+     * Leaves planes as they are.
+     */
+    public static final Binning NONE = new Binning(1, Mode.mean);
+
+    private final int factor;
+
+    private final Mode mode;
+
+    private Binning(int factor, Mode mode) {
+        this.factor = factor;
+        this.mode = mode;
+    }
+
+    /**
+     * @param factor positive number of pixels combined along each axis
+     * @param mode one of {@link Mode}, or null for the mean
+     */
+    public static Binning parse(int factor, String mode) throws Errors.UsageException {
+        Mode parsed = Mode.mean;
+        if (mode != null) {
+            try {
+                parsed = Mode.valueOf(mode);
+            } catch (IllegalArgumentException e) {
+                Errors.badBinning.raise(mode);
+            }
+        }
+        if (factor < 1) {
+            Errors.badBinning.raise(factor);
+        }
+        return factor == 1 ? NONE : new Binning(factor, parsed);
+    }
+
+    public boolean isNone() {
+        return factor == 1;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the binned size of an axis of the given size
+     */
+    public int size(int size) {
+        return size / factor;
+    }
+
+    /**
+     * Resize the single image of the metadata and scale its physical pixel size.
+     */
+    public void apply(OMEXMLMetadata single) {
+        if (isNone()) {
+            return;
+        }
+        single.setPixelsSizeX(new PositiveInteger(size(single.getPixelsSizeX(0).getValue())), 0);
+        single.setPixelsSizeY(new PositiveInteger(size(single.getPixelsSizeY(0).getValue())), 0);
+        Length x = single.getPixelsPhysicalSizeX(0);
+        if (x != null) {
+            single.setPixelsPhysicalSizeX(new Length(x.value().doubleValue() * factor, x.unit()), 0);
+        }
+        Length y = single.getPixelsPhysicalSizeY(0);
+        if (y != null) {
+            single.setPixelsPhysicalSizeY(new Length(y.value().doubleValue() * factor, y.unit()), 0);
+        }
+    }
+
+    /**
+     * Bin the pixels of a plane or strip as returned by openBytes.
+     *
+     * @param in pixels of sizeX x sizeY
+     * @param out receives the binned pixels of {@link #size}(sizeX) x {@link #size}(sizeY)
+     */
+    public void bin(byte[] in, int sizeX, int sizeY, byte[] out,
+                    int pixelType, int samples, boolean interleaved, boolean little) {
+        int bpp = FormatTools.getBytesPerPixel(pixelType);
+        int outX = size(sizeX);
+        int outY = size(sizeY);
+        // Interleaved rows hold all samples, planar ones a single sample each
+        int planes = interleaved ? 1 : samples;
+        int components = interleaved ? samples : 1;
+        int inRow = sizeX * components;
+        int outRow = outX * components;
+        boolean floating = FormatTools.isFloatingPoint(pixelType);
+        long[] row = floating ? null : new long[inRow];
+        long[] acc = floating ? null : new long[outRow];
+        double[] drow = floating ? new double[inRow] : null;
+        double[] dacc = floating ? new double[outRow] : null;
+        long[] limits = floating ? null : FormatTools.defaultMinMax(pixelType);
+        int count = factor * factor;
+        for (int p = 0; p < planes; p++) {
+            for (int oy = 0; oy < outY; oy++) {
+                if (floating) {
+                    Arrays.fill(dacc, mode == Mode.max ? Double.NEGATIVE_INFINITY : 0);
+                } else {
+                    Arrays.fill(acc, mode == Mode.max ? Long.MIN_VALUE : 0);
+                }
+                for (int dy = 0; dy < factor; dy++) {
+                    int offset = ((p * sizeY) + oy * factor + dy) * inRow * bpp;
+                    if (floating) {
+                        readDoubles(in, offset, drow, outX * factor * components, pixelType, little);
+                        accumulate(drow, dacc, outX * factor, components);
+                    } else {
+                        readLongs(in, offset, row, outX * factor * components, pixelType, little);
+                        accumulate(row, acc, outX * factor, components);
+                    }
+                }
+                int offset = ((p * outY) + oy) * outRow * bpp;
+                if (floating) {
+                    if (mode == Mode.mean) {
+                        for (int i = 0; i < outRow; i++) {
+                            dacc[i] /= count;
+                        }
+                    }
+                    writeDoubles(dacc, out, offset, pixelType, little);
+                } else {
+                    for (int i = 0; i < outRow; i++) {
+                        long v = acc[i];
+                        if (mode == Mode.mean) {
+                            v = Math.floorDiv(v + count / 2, count);
+                        }
+                        acc[i] = Math.max(limits[0], Math.min(limits[1], v));
+                    }
+                    writeLongs(acc, out, offset, pixelType, little);
+                }
+            }
+        }
+    }
+
+    private void accumulate(long[] row, long[] acc, int width, int components) {
+        int i = 0;
+        for (int x = 0; x < width; x++) {
+            int o = (x / factor) * components;
+            for (int s = 0; s < components; s++, i++) {
+                if (mode == Mode.max) {
+                    acc[o + s] = Math.max(acc[o + s], row[i]);
+                } else {
+                    acc[o + s] += row[i];
+                }
+            }
+        }
+    }
+
+    private void accumulate(double[] row, double[] acc, int width, int components) {
+        int i = 0;
+        for (int x = 0; x < width; x++) {
+            int o = (x / factor) * components;
+            for (int s = 0; s < components; s++, i++) {
+                if (mode == Mode.max) {
+                    acc[o + s] = Math.max(acc[o + s], row[i]);
+                } else {
+                    acc[o + s] += row[i];
+                }
+            }
+        }
+    }
+
+    private static void readLongs(byte[] buf, int offset, long[] row, int n, int pixelType, boolean little) {
+        switch (pixelType) {
+            case FormatTools.INT8:
+                for (int i = 0; i < n; i++) {
+                    row[i] = buf[offset + i];
+                }
+                break;
+            case FormatTools.UINT8:
+                for (int i = 0; i < n; i++) {
+                    row[i] = buf[offset + i] & 0xff;
+                }
+                break;
+            case FormatTools.INT16:
+                for (int i = 0; i < n; i++) {
+                    row[i] = (short) get16(buf, offset + 2 * i, little);
+                }
+                break;
+            case FormatTools.UINT16:
+                for (int i = 0; i < n; i++) {
+                    row[i] = get16(buf, offset + 2 * i, little);
+                }
+                break;
+            case FormatTools.INT32:
+                for (int i = 0; i < n; i++) {
+                    row[i] = get32(buf, offset + 4 * i, little);
+                }
+                break;
+            case FormatTools.UINT32:
+                for (int i = 0; i < n; i++) {
+                    row[i] = get32(buf, offset + 4 * i, little) & 0xffffffffL;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("cannot bin " + FormatTools.getPixelTypeString(pixelType));
+        }
+    }
+
+    private static void readDoubles(byte[] buf, int offset, double[] row, int n, int pixelType, boolean little) {
+        if (pixelType == FormatTools.FLOAT) {
+            for (int i = 0; i < n; i++) {
+                row[i] = Float.intBitsToFloat(get32(buf, offset + 4 * i, little));
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                long lo = get32(buf, offset + 8 * i + (little ? 0 : 4), little) & 0xffffffffL;
+                long hi = get32(buf, offset + 8 * i + (little ? 4 : 0), little) & 0xffffffffL;
+                row[i] = Double.longBitsToDouble(hi << 32 | lo);
+            }
+        }
+    }
+
+    private static void writeLongs(long[] acc, byte[] buf, int offset, int pixelType, boolean little) {
+        switch (FormatTools.getBytesPerPixel(pixelType)) {
+            case 1:
+                for (int i = 0; i < acc.length; i++) {
+                    buf[offset + i] = (byte) acc[i];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < acc.length; i++) {
+                    put16(buf, offset + 2 * i, (int) acc[i], little);
+                }
+                break;
+            default:
+                for (int i = 0; i < acc.length; i++) {
+                    put32(buf, offset + 4 * i, (int) acc[i], little);
+                }
+        }
+    }
+
+    private static void writeDoubles(double[] acc, byte[] buf, int offset, int pixelType, boolean little) {
+        if (pixelType == FormatTools.FLOAT) {
+            for (int i = 0; i < acc.length; i++) {
+                put32(buf, offset + 4 * i, Float.floatToIntBits((float) acc[i]), little);
+            }
+        } else {
+            for (int i = 0; i < acc.length; i++) {
+                long bits = Double.doubleToLongBits(acc[i]);
+                put32(buf, offset + 8 * i + (little ? 0 : 4), (int) bits, little);
+                put32(buf, offset + 8 * i + (little ? 4 : 0), (int) (bits >>> 32), little);
+            }
+        }
+    }
+
+    private static int get16(byte[] buf, int p, boolean little) {
+        return little
+                ? (buf[p] & 0xff) | (buf[p + 1] & 0xff) << 8
+                : (buf[p] & 0xff) << 8 | (buf[p + 1] & 0xff);
+    }
+
+    private static int get32(byte[] buf, int p, boolean little) {
+        return little
+                ? (buf[p] & 0xff) | (buf[p + 1] & 0xff) << 8 | (buf[p + 2] & 0xff) << 16 | buf[p + 3] << 24
+                : buf[p] << 24 | (buf[p + 1] & 0xff) << 16 | (buf[p + 2] & 0xff) << 8 | (buf[p + 3] & 0xff);
+    }
+
+    private static void put16(byte[] buf, int p, int v, boolean little) {
+        buf[p + (little ? 0 : 1)] = (byte) v;
+        buf[p + (little ? 1 : 0)] = (byte) (v >> 8);
+    }
+
+    private static void put32(byte[] buf, int p, int v, boolean little) {
+        for (int b = 0; b < 4; b++) {
+            buf[p + (little ? b : 3 - b)] = (byte) (v >> (8 * b));
+        }
+    }
+}
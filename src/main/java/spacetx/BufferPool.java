@@ -0,0 +1,170 @@
+package spacetx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of plane buffers which are leased by the reading stage and
+ * released by the writing stage so that steady-state conversion does
+ * not allocate a new (often humongous) array per plane.
+ *
+ * Buffers are grouped into classes by their exact size since the
+ * writers derive the number of bytes to write from the buffer. Leasing
+ * never blocks: if no buffer of the requested size is idle, a new one is
+ * allocated. At most {@code retained} idle buffers are kept per class and
+ * the idle buffers of all classes together are kept within a byte budget
+ * by dropping the least recently released first, so that the many sizes of
+ * heterogeneous FOVs, last strips and binned or converted planes cannot
+ * accumulate until {@link #close()}.
+ *
+ * Every leased buffer is tracked so that releasing a buffer twice or one
+ * which did not come from the pool fails immediately, and buffers which
+ * were never released are reported by {@link #close()}.
+ */
+public class BufferPool {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(BufferPool.class);
+
+    private final int retained;
+
+    private final long maxIdleBytes;
+
+    /**
+     * Idle buffers by size, most recently released last. Guarded by this.
+     */
+    private final Map<Integer, Deque<byte[]>> idle = new HashMap<>();
+
+    /**
+     * All idle buffers, least recently released first. Guarded by this.
+     */
+    private final Deque<byte[]> released = new ArrayDeque<>();
+
+    private long idleBytes = 0;
+
+    private final Set<byte[]> leased = Collections.synchronizedSet(
+            Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    private final AtomicLong allocated = new AtomicLong();
+
+    private final AtomicLong reused = new AtomicLong();
+
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Keeps idle buffers within a quarter of the maximum heap.
+     *
+     * @param retained maximum number of idle buffers kept per size.
+     */
+    public BufferPool(int retained) {
+        this(retained, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * @param retained maximum number of idle buffers kept per size.
+     * @param maxIdleBytes maximum total size of all idle buffers.
+     */
+    public BufferPool(int retained, long maxIdleBytes) {
+        this.retained = retained;
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    /**
+     * @return a buffer of exactly the given size whose contents are undefined.
+     */
+    public byte[] lease(int size) {
+        byte[] buf = null;
+        synchronized (this) {
+            Deque<byte[]> sc = idle.get(size);
+            if (sc != null) {
+                buf = sc.pollLast();
+            }
+            if (buf != null) {
+                released.removeLastOccurrence(buf);
+                idleBytes -= size;
+            }
+        }
+        if (buf == null) {
+            buf = new byte[size];
+            allocated.incrementAndGet();
+        } else {
+            reused.incrementAndGet();
+        }
+        leased.add(buf);
+        return buf;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #lease(int)}. It must not be
+     * used afterwards.
+     */
+    public void release(byte[] buf) {
+        if (!leased.remove(buf)) {
+            throw new IllegalStateException("buffer was not leased from this pool");
+        }
+        synchronized (this) {
+            Deque<byte[]> sc = idle.computeIfAbsent(buf.length, k -> new ArrayDeque<>());
+            if (sc.size() >= retained) {
+                return; // Left for garbage collection
+            }
+            sc.addLast(buf);
+            released.addLast(buf);
+            idleBytes += buf.length;
+            while (idleBytes > maxIdleBytes) {
+                byte[] oldest = released.pollFirst();
+                idle.get(oldest.length).removeFirstOccurrence(oldest);
+                idleBytes -= oldest.length;
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return total size of the idle buffers.
+     */
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    /**
+     * @return number of buffers currently leased.
+     */
+    public int getLeased() {
+        return leased.size();
+    }
+
+    /**
+     * Drop all idle buffers and report any which were never released.
+     *
+     * @return number of leaked buffers
+     */
+    public int close() {
+        synchronized (this) {
+            idle.clear();
+            released.clear();
+            idleBytes = 0;
+        }
+        int leaks;
+        long bytes = 0;
+        synchronized (leased) {
+            leaks = leased.size();
+            for (byte[] buf : leased) {
+                bytes += buf.length;
+            }
+        }
+        if (leaks > 0) {
+            LOGGER.warn("{} plane buffers ({} bytes) were never released", leaks, bytes);
+        }
+        LOGGER.debug("allocated {} plane buffers, reused {}, evicted {}",
+                allocated.get(), reused.get(), evicted.get());
+        return leaks;
+    }
+}
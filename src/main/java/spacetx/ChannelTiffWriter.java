@@ -0,0 +1,494 @@
+package spacetx;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+import ome.xml.model.primitives.NonNegativeInteger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes the planes of a single FOV as uncompressed OME-TIFFs using
+ * positional {@link FileChannel} writes rather than the Bio-Formats
+ * stream-based writers.
+ *
+ * Since every page is uncompressed, the offset of each IFD and of each
+ * strip of pixels is known up-front. Strips can therefore be written as
+ * soon as they are read, in any order and from any thread, without the
+ * plane ever being held in memory as a whole. For files holding a single
+ * plane, the header and IFD are gathered into the same write as the
+ * first strip.
+ *
+ * Each TIFF holds a BinaryOnly OME-XML block pointing to the companion
+ * file which is written by {@link #close(OMEXMLMetadata, int[][])} once
+ * all planes are done.
+ */
+public class ChannelTiffWriter {
+
+    private final static short ASCII = 2, SHORT = 3, LONG = 4, LONG8 = 16;
+
+    /**
+     * Files estimated to be larger than this are written as BigTIFF.
+     */
+    private final static long BIGTIFF_THRESHOLD = 4L * 1024 * 1024 * 1024 - 64L * 1024 * 1024;
+
+    private final File out;
+    private final String[] files;
+    private final String companion;
+    private final int sizeX, sizeY, samples, bpp, pixelType;
+    private final boolean interleaved;
+    private final ByteOrder order;
+    private final boolean multipage;
+    private final int rowsPerStrip;
+
+    /**
+     * Bytes of pixel data per row across all samples.
+     */
+    private final long rowBytes;
+
+    private final long planeBytes;
+
+    private final String companionUUID = "urn:uuid:" + UUID.randomUUID();
+
+    /**
+     * UUID of each distinct file.
+     */
+    private final Map<String, String> uuids = new HashMap<>();
+
+    private final boolean bigTiff;
+
+    /**
+     * Descriptions are padded to the longest one so that all first pages
+     * have the same size regardless of their file name.
+     */
+    private final int descriptionBytes;
+
+    /**
+     * Size of the IFD block (including out-of-line values) of the first page
+     * of each file, which holds the OME-XML, and of all further pages.
+     */
+    private final long firstIfdBytes, ifdBytes;
+
+    /**
+     * Shared channel when all planes are in one file, otherwise null.
+     */
+    private final FileChannel shared;
+
+    /**
+     * @param files output file of each plane relative to out. In multipage
+     *              mode, all planes must name the same file.
+     * @param companion companion file relative to out
+     * @param rowsPerStrip number of rows which will be passed to each call
+     *                     of {@link #writeStrip(int, int, int, ByteBuffer, FileChannel)}
+     */
+    public ChannelTiffWriter(File out, String[] files, String companion, boolean multipage,
+                             int sizeX, int sizeY, int samples, int pixelType,
+                             boolean littleEndian, boolean interleaved, int rowsPerStrip)
+            throws IOException {
+        this.out = out;
+        this.files = files;
+        this.companion = companion;
+        this.multipage = multipage;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.samples = samples;
+        this.pixelType = pixelType;
+        this.bpp = FormatTools.getBytesPerPixel(pixelType);
+        this.interleaved = interleaved || samples == 1;
+        this.order = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        this.rowsPerStrip = Math.max(1, Math.min(rowsPerStrip, sizeY));
+        this.rowBytes = (long) sizeX * samples * bpp;
+        this.planeBytes = rowBytes * sizeY;
+
+        for (String file : files) {
+            uuids.computeIfAbsent(file, k -> "urn:uuid:" + UUID.randomUUID());
+        }
+
+        int longest = 0;
+        for (String file : uuids.keySet()) {
+            longest = Math.max(longest, description(file).getBytes(StandardCharsets.UTF_8).length);
+        }
+        this.descriptionBytes = longest;
+
+        // Size the IFDs once for classic TIFF to decide whether BigTIFF is needed
+        String first = files.length > 0 ? files[0] : "";
+        int pages = multipage ? files.length : 1;
+        long classic = 8 + ifd(0, first, false, 0, 0, 0).limit() + planeBytes
+                + (pages - 1) * (ifd(1, first, false, 0, 0, 0).limit() + planeBytes);
+        this.bigTiff = classic >= BIGTIFF_THRESHOLD;
+        this.firstIfdBytes = ifd(0, first, bigTiff, 0, 0, 0).limit();
+        this.ifdBytes = ifd(1, first, bigTiff, 0, 0, 0).limit();
+
+        if (multipage && files.length > 0) {
+            shared = open(files[0]);
+            try {
+                writeFully(shared, header(), 0);
+                // IFDs of all pages (chained via their precomputed offsets)
+                for (int plane = 0; plane < files.length; plane++) {
+                    writeFully(shared, ifd(plane), ifdOffset(plane));
+                }
+            } catch (IOException e) {
+                shared.close();
+                throw e;
+            }
+        } else {
+            shared = null;
+        }
+    }
+
+    public int getRowsPerStrip() {
+        return rowsPerStrip;
+    }
+
+    public long getPlaneBytes() {
+        return planeBytes;
+    }
+
+    private int headerBytes() {
+        return bigTiff ? 16 : 8;
+    }
+
+    /**
+     * Page of the plane within its file.
+     */
+    private int page(int plane) {
+        return multipage ? plane : 0;
+    }
+
+    private long ifdOffset(int page) {
+        if (page == 0) {
+            return headerBytes();
+        }
+        return headerBytes() + firstIfdBytes + planeBytes + (page - 1) * (ifdBytes + planeBytes);
+    }
+
+    private long pixelOffset(int page) {
+        return ifdOffset(page) + (page == 0 ? firstIfdBytes : ifdBytes);
+    }
+
+    /**
+     * Write rows [y, y + h) of the plane. The buffer holds the rows as
+     * returned by the reader, i.e. either interleaved or one block per sample,
+     * and is consumed. Each call for the same plane must come from the same
+     * thread unless the FOV is multipage.
+     *
+     * @param channel null on the first call for a plane unless multipage.
+     * @return the channel to pass to subsequent calls for the plane.
+     */
+    public FileChannel writeStrip(int plane, int y, int h, ByteBuffer strip, FileChannel channel)
+            throws IOException {
+        int page = page(plane);
+        long pixels = pixelOffset(page);
+        if (multipage) {
+            channel = shared;
+        } else if (channel == null) {
+            channel = open(files[plane]);
+            try {
+                if (interleaved && y == 0) {
+                    // Gather header, IFD, and first strip into a single write
+                    ByteBuffer[] srcs = new ByteBuffer[]{header(), ifd(plane), strip};
+                    long total = srcs[0].remaining() + srcs[1].remaining() + strip.remaining();
+                    long written = 0;
+                    while (written < total) {
+                        written += channel.write(srcs);
+                    }
+                    return channel;
+                }
+                writeFully(channel, header(), 0);
+                writeFully(channel, ifd(plane), ifdOffset(page));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        if (interleaved) {
+            writeFully(channel, strip, pixels + y * rowBytes);
+        } else {
+            // One block of h rows per sample
+            long sampleRow = (long) sizeX * bpp;
+            int block = (int) (sampleRow * h);
+            int base = strip.position();
+            for (int s = 0; s < samples; s++) {
+                strip.limit(base + (s + 1) * block).position(base + s * block);
+                writeFully(channel, strip, pixels + s * sampleRow * sizeY + y * sampleRow);
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Write a whole plane from a file holding its pixels in the layout
+     * returned by the reader, which is also that of the pixels in the TIFF.
+     * The pixels are copied by {@link FileChannel#transferFrom} without
+     * passing through the heap.
+     */
+    public void copyPlane(int plane, File pixels) throws IOException {
+        FileChannel channel = multipage ? shared : open(files[plane]);
+        try (FileChannel src = FileChannel.open(pixels.toPath(), StandardOpenOption.READ)) {
+            if (!multipage) {
+                writeFully(channel, header(), 0);
+                writeFully(channel, ifd(plane), ifdOffset(0));
+            }
+            long position = pixelOffset(page(plane));
+            long done = 0;
+            while (done < planeBytes) {
+                long n = channel.transferFrom(src, position + done, planeBytes - done);
+                if (n <= 0) {
+                    throw new IOException(String.format("%s ends after %d bytes", pixels, done));
+                }
+                done += n;
+            }
+        } finally {
+            finishPlane(channel);
+        }
+    }
+
+    /**
+     * @return the offset of the pixels of the plane within its file
+     */
+    public long getPixelOffset(int plane) {
+        return pixelOffset(page(plane));
+    }
+
+    /**
+     * Called once all strips of the plane have been written.
+     */
+    public void finishPlane(FileChannel channel) throws IOException {
+        if (channel != null && !multipage) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Close the shared channel, if any, and write the companion file
+     * referencing every plane.
+     *
+     * @param export single-image metadata for this FOV
+     * @param zct z, c, and t of each plane
+     */
+    public void close(OMEXMLMetadata export, int[][] zct) throws IOException, FormatException {
+        abort();
+        Path companionPath = new File(out, companion).toPath().toAbsolutePath();
+        Path base = companionPath.getParent();
+        export.setUUID(companionUUID);
+        for (int i = 0; i < files.length; i++) {
+            Path tiff = new File(out, files[i]).toPath().toAbsolutePath();
+            String relative = base.relativize(tiff).toString().replace(File.separatorChar, '/');
+            export.setTiffDataFirstZ(new NonNegativeInteger(zct[i][0]), 0, i);
+            export.setTiffDataFirstC(new NonNegativeInteger(zct[i][1]), 0, i);
+            export.setTiffDataFirstT(new NonNegativeInteger(zct[i][2]), 0, i);
+            export.setTiffDataIFD(new NonNegativeInteger(page(i)), 0, i);
+            export.setTiffDataPlaneCount(new NonNegativeInteger(1), 0, i);
+            export.setUUIDFileName(relative, 0, i);
+            export.setUUIDValue(uuids.get(files[i]), 0, i);
+        }
+        try {
+            OMEXMLService xml = new ServiceFactory().getInstance(OMEXMLService.class);
+            Files.createDirectories(base);
+            Files.write(companionPath, xml.getOMEXML(export).getBytes(StandardCharsets.UTF_8));
+        } catch (ServiceException | DependencyException exc) {
+            throw new FormatException("Error creating metadata service");
+        }
+    }
+
+    /**
+     * Close the shared channel, if any, after a failure. Partially written
+     * files are left in place.
+     */
+    public void abort() throws IOException {
+        if (shared != null) {
+            shared.close();
+        }
+    }
+
+    private FileChannel open(String file) throws IOException {
+        Path path = new File(out, file).toPath().toAbsolutePath();
+        Files.createDirectories(path.getParent());
+        return FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer buf = ByteBuffer.allocate(headerBytes()).order(order);
+        buf.put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+        buf.put(buf.get(0));
+        if (bigTiff) {
+            buf.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(ifdOffset(0));
+        } else {
+            buf.putShort((short) 42).putInt((int) ifdOffset(0));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private ByteBuffer ifd(int plane) {
+        int page = page(plane);
+        int pages = multipage ? files.length : 1;
+        long next = page + 1 < pages ? ifdOffset(page + 1) : 0;
+        return ifd(page, files[plane], bigTiff, ifdOffset(page), pixelOffset(page), next);
+    }
+
+    /**
+     * The BinaryOnly OME-XML stored in the first page of each file.
+     */
+    private String description(String file) {
+        Path tiff = new File(out, file).toPath().toAbsolutePath();
+        Path meta = new File(out, companion).toPath().toAbsolutePath();
+        String relative = tiff.getParent().relativize(meta).toString().replace(File.separatorChar, '/');
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<OME xmlns=\"http://www.openmicroscopy.org/Schemas/OME/2016-06\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " UUID=\"" + uuids.get(file) + "\""
+                + " xsi:schemaLocation=\"http://www.openmicroscopy.org/Schemas/OME/2016-06"
+                + " http://www.openmicroscopy.org/Schemas/OME/2016-06/ome.xsd\">"
+                + "<BinaryOnly MetadataFile=\"" + relative + "\" UUID=\"" + companionUUID + "\"/>"
+                + "</OME>";
+    }
+
+    /**
+     * Encode a complete IFD followed by its out-of-line values.
+     */
+    private ByteBuffer ifd(int page, String file, boolean big, long offset, long pixels, long next) {
+        int stripsPerSample = (sizeY + rowsPerStrip - 1) / rowsPerStrip;
+        int strips = interleaved ? stripsPerSample : stripsPerSample * samples;
+        long[] offsets = new long[strips];
+        long[] counts = new long[strips];
+        long sampleRow = (long) sizeX * bpp;
+        for (int i = 0; i < strips; i++) {
+            int s = i / stripsPerSample;
+            int row = (i % stripsPerSample) * rowsPerStrip;
+            int rows = Math.min(rowsPerStrip, sizeY - row);
+            if (interleaved) {
+                offsets[i] = pixels + row * rowBytes;
+                counts[i] = rows * rowBytes;
+            } else {
+                offsets[i] = pixels + s * sampleRow * sizeY + row * sampleRow;
+                counts[i] = rows * sampleRow;
+            }
+        }
+        long[] bits = new long[samples];
+        long[] format = new long[samples];
+        int sampleFormat = FormatTools.isFloatingPoint(pixelType) ? 3 : FormatTools.isSigned(pixelType) ? 2 : 1;
+        for (int s = 0; s < samples; s++) {
+            bits[s] = 8 * bpp;
+            format[s] = sampleFormat;
+        }
+        short offsetType = big ? LONG8 : LONG;
+
+        List<Object[]> entries = new ArrayList<>();
+        entries.add(new Object[]{256, LONG, new long[]{sizeX}});
+        entries.add(new Object[]{257, LONG, new long[]{sizeY}});
+        entries.add(new Object[]{258, SHORT, bits});
+        entries.add(new Object[]{259, SHORT, new long[]{1}}); // uncompressed
+        entries.add(new Object[]{262, SHORT, new long[]{samples == 3 ? 2 : 1}});
+        if (page == 0) {
+            entries.add(new Object[]{270, ASCII, description(file)});
+        }
+        entries.add(new Object[]{273, offsetType, offsets});
+        entries.add(new Object[]{277, SHORT, new long[]{samples}});
+        entries.add(new Object[]{278, LONG, new long[]{rowsPerStrip}});
+        entries.add(new Object[]{279, offsetType, counts});
+        entries.add(new Object[]{284, SHORT, new long[]{interleaved ? 1 : 2}});
+        if (samples > 1 && samples != 3) {
+            entries.add(new Object[]{338, SHORT, new long[samples - 1]}); // unspecified
+        }
+        entries.add(new Object[]{339, SHORT, format});
+
+        int entryBytes = big ? 20 : 12;
+        int inline = big ? 8 : 4;
+        int head = (big ? 8 : 2) + entries.size() * entryBytes + (big ? 8 : 4);
+        ByteArrayOutputStream extra = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(head).order(order);
+        if (big) {
+            buf.putLong(entries.size());
+        } else {
+            buf.putShort((short) entries.size());
+        }
+        for (Object[] entry : entries) {
+            int tag = (Integer) entry[0];
+            short type = (Short) entry[1];
+            byte[] value;
+            long count;
+            if (type == ASCII) {
+                byte[] text = ((String) entry[2]).getBytes(StandardCharsets.UTF_8);
+                value = new byte[Math.max(text.length, descriptionBytes) + 1];
+                Arrays.fill(value, 0, value.length - 1, (byte) ' ');
+                System.arraycopy(text, 0, value, 0, text.length);
+                count = value.length;
+            } else {
+                long[] values = (long[]) entry[2];
+                int size = type == SHORT ? 2 : type == LONG ? 4 : 8;
+                ByteBuffer v = ByteBuffer.allocate(values.length * size).order(order);
+                for (long l : values) {
+                    if (size == 2) {
+                        v.putShort((short) l);
+                    } else if (size == 4) {
+                        v.putInt((int) l);
+                    } else {
+                        v.putLong(l);
+                    }
+                }
+                value = v.array();
+                count = values.length;
+            }
+            buf.putShort((short) tag).putShort(type);
+            if (big) {
+                buf.putLong(count);
+            } else {
+                buf.putInt((int) count);
+            }
+            if (value.length <= inline) {
+                buf.put(value);
+                for (int i = value.length; i < inline; i++) {
+                    buf.put((byte) 0);
+                }
+            } else {
+                long at = offset + head + extra.size();
+                if (big) {
+                    buf.putLong(at);
+                } else {
+                    buf.putInt((int) at);
+                }
+                extra.write(value, 0, value.length);
+                if (extra.size() % 2 == 1) {
+                    extra.write(0); // word alignment
+                }
+            }
+        }
+        if (big) {
+            buf.putLong(next);
+        } else {
+            buf.putInt((int) next);
+        }
+        ByteBuffer all = ByteBuffer.allocate(head + extra.size()).order(order);
+        buf.flip();
+        all.put(buf).put(extra.toByteArray());
+        all.flip();
+        return all;
+    }
+}
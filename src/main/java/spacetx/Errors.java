@@ -14,16 +14,19 @@ public enum Errors {
     doesNotExist(1, "input does not exist (%s)"),
     usage(2, "DEFAULT FAILURE CODE"),
     outputExists(3, "output location already exists! (%s)"),
-    multipleImages(4,"%s contains multiple images (count=%d). Please choose one."),
+    multipleImages(4,"%s contains multiple images (count=%d). Please choose one or pass --all-series."),
     fovIsPositive(5, "FOV must be a greater than or equal to 0 (%d)"),
-    tooManyPlates(6, "Too many plates found (count=%d)"),
-    tooManyWells(7, "Too many wells found (count=%d)"),
     singleScreening(8, "only a single screening fileset is supported"),
     patternFiles(9, "pattern files must end in '.pattern'"),
-    needAction(10, "one of --output, --info, --guess required"),
+    needAction(10, "one of --output, --info, --guess, --plan required"),
     unknownFormat(11,"unknown format: %s" ),
     badOption(12,"bad option: %s" ),
-    badFlag(13,"bad flag: %s" );
+    badFlag(13,"bad flag: %s" ),
+    badThreads(14, "bad thread count: %s"),
+    badSelection(15, "bad selection: %s"),
+    badBinning(16, "bad binning: %s"),
+    badRescaling(17, "bad pixel type or rescaling: %s"),
+    noInput(18, "no input given");
 
     public final int rc;
 
@@ -39,11 +42,12 @@ public enum Errors {
     }
 
     /*
-     * Allows passing a return code for CLI failures.
+     * Allows passing a return code for CLI failures. Also the cause of
+     * failure of conversions started via {@link FOVTool#start}.
      */
     public static class UsageException extends CmdLineException {
 
-        final int rc;
+        public final int rc;
 
         UsageException(int rc, String message) {
             super(message);
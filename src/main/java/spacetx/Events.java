@@ -0,0 +1,143 @@
+package spacetx;
+
+/**
+ * Java Flight Recorder events produced during conversion.
+ *
+ * Events cost next to nothing unless a recording is active, e.g.:
+ *
+ * <pre>
+ *     JAVA_OPTS="-XX:StartFlightRecording=filename=run.jfr" spacetx-writer ...
+ * </pre>
+ *
+ * and can then be inspected in JDK Mission Control under "SpaceTx".
+ *
+ * The classes below do not depend on the Flight Recorder API so that JDK 8
+ * releases before 8u262, which lack jdk.jfr, can still run the conversion.
+ * Only when the API is present are they recorded via {@link FlightRecorder},
+ * which is loaded by name; otherwise {@link Event#begin()} and
+ * {@link Event#commit()} do nothing.
+ */
+public class Events {
+
+    /**
+     * Records events if the Flight Recorder API is available, otherwise null.
+     */
+    private static final Recorder RECORDER = load();
+
+    private Events() {
+        // Holder only
+    }
+
+    /**
+     * Bridge to the Flight Recorder API, implemented by {@link FlightRecorder}.
+     */
+    interface Recorder {
+
+        /**
+         * @return the Flight Recorder event timing the given one
+         */
+        Object begin(Event event);
+
+        /**
+         * Copy the fields of the event into the Flight Recorder event and commit it.
+         */
+        void commit(Event event, Object recorded);
+    }
+
+    private static Recorder load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName("spacetx.FlightRecorder").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether events are passed on to the Flight Recorder
+     */
+    public static boolean isAvailable() {
+        return RECORDER != null;
+    }
+
+    /**
+     * Base of all events: timed from {@link #begin()} to {@link #commit()}.
+     */
+    public abstract static class Event {
+
+        private Object recorded;
+
+        public void begin() {
+            if (RECORDER != null) {
+                recorded = RECORDER.begin(this);
+            }
+        }
+
+        public void commit() {
+            if (RECORDER != null) {
+                RECORDER.commit(this, recorded);
+            }
+        }
+    }
+
+    /**
+     * setId and, for the parsing reader, populatePixels on an input.
+     */
+    public static class ReaderInit extends Event {
+
+        String input;
+
+        /**
+         * False for additional readers used only for pixels.
+         */
+        boolean populated;
+
+        int seriesCount;
+    }
+
+    public static class PlaneRead extends Event {
+
+        int fov;
+
+        int series;
+
+        int plane;
+
+        long bytes;
+    }
+
+    /**
+     * One per plane, however many tiles or strips it was written in.
+     */
+    public static class PlaneWrite extends Event {
+
+        String file;
+
+        /**
+         * Plane index within the file.
+         */
+        int plane;
+
+        long bytes;
+    }
+
+    public static class Hash extends Event {
+
+        int fov;
+
+        String file;
+
+        long bytes;
+    }
+
+    /**
+     * FOV json or experiment/manifest/codebook json written.
+     */
+    public static class ManifestWrite extends Event {
+
+        String file;
+
+        int fovs;
+    }
+
+}
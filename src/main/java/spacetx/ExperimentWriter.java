@@ -9,10 +9,16 @@ import loci.formats.ImageReader;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
@@ -25,33 +31,89 @@ public class ExperimentWriter {
 
     private final Naming naming;
     private final File out;
+    private final Trace trace;
     private Queue<Integer> fovs = new ConcurrentLinkedQueue<>();
 
+    /**
+     * Whether the stage positions of every plane should be appended to a
+     * single csv for downstream stitching.
+     */
+    private boolean exportPositions = false;
+
     public ExperimentWriter(Naming naming, File out) {
+        this(naming, out, Trace.NONE);
+    }
+
+    public ExperimentWriter(Naming naming, File out, Trace trace) {
         this.out = out;
         this.naming = naming;
+        this.trace = trace;
     }
 
     public void addFOV(int i) {
         fovs.add(i);
     }
 
-    public void write() throws IOException {
+    public void setExportPositions(boolean exportPositions) {
+        this.exportPositions = exportPositions;
+    }
+
+    /**
+     * Add the FOV and, if enabled, append its stage positions to the
+     * positions csv with one row per plane. Missing values are left empty.
+     */
+    public void addFOV(int i, PlanePositions positions) throws IOException {
+        addFOV(i);
+        if (exportPositions) {
+            writePositions(i, positions);
+        }
+    }
+
+    private synchronized void writePositions(int fov, PlanePositions positions) throws IOException {
+        File csv = new File(out, naming.getPositionsFilename());
+        StringBuilder sb = new StringBuilder();
+        if (!csv.exists()) {
+            sb.append("fov,series,plane,z,c,t,xc,yc,zc\n");
+        }
+        for (int plane = 0; plane < positions.getPlaneCount(); plane++) {
+            int[] zct = positions.getZCT(plane);
+            sb.append(fov).append(',')
+              .append(positions.getSeries()).append(',')
+              .append(plane).append(',')
+              .append(zct[0]).append(',')
+              .append(zct[1]).append(',')
+              .append(zct[2]);
+            for (int axis = PlanePositions.X; axis <= PlanePositions.Z; axis++) {
+                sb.append(',');
+                if (positions.has(axis, plane)) {
+                    sb.append(positions.get(axis, plane));
+                }
+            }
+            sb.append('\n');
+        }
+        Files.write(csv.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    public synchronized void write() throws IOException {
+        Events.ManifestWrite event = new Events.ManifestWrite();
+        event.begin();
+        long start = trace.start();
         ObjectMapper mapper = new ObjectMapper();
         PrettyPrinter printer = naming.createPrinter();
         ObjectWriter writer = mapper.writer(printer);
 
         ObjectNode manifest = mapper.createObjectNode();
         ObjectNode contents = mapper.createObjectNode();
-        for (Integer fov : fovs) {
+        for (Integer fov : new TreeSet<>(fovs)) {
             contents.put(naming.getFOV(fov),
                     naming.getJsonFilename(fov));
         }
         manifest.set("contents", contents);
         manifest.set("extras", null);
         manifest.put("version", "0.0.0");
-        writer.writeValue(new File(
-            String.format("%s/%s", out, naming.getManifestFilename())), manifest);
+        replace(writer, manifest, new File(
+            String.format("%s/%s", out, naming.getManifestFilename())));
 
         ObjectNode exp = mapper.createObjectNode();
         ObjectNode images = mapper.createObjectNode();
@@ -61,7 +123,7 @@ public class ExperimentWriter {
         exp.put("codebook", "codebook.json");
         images.put("primary", naming.getManifestFilename());
 
-        writer.writeValue(new File(String.format("%s/experiment.json", out)), exp);
+        replace(writer, exp, new File(String.format("%s/experiment.json", out)));
 
         ObjectNode book = mapper.createObjectNode();
         ArrayNode mappings = mapper.createArrayNode();
@@ -78,7 +140,27 @@ public class ExperimentWriter {
         book.put("version", "0.0.0");
         book.put("mappings", mappings);
         writer = mapper.writer(printer);
-        writer.writeValue(new File(String.format("%s/codebook.json", out)), book);
+        replace(writer, book, new File(String.format("%s/codebook.json", out)));
+        trace.end(Trace.Phase.experiment, Trace.NO_FOV, start);
+        event.file = String.format("%s/experiment.json", out);
+        event.fovs = fovs.size();
+        event.commit();
+    }
+
+    /**
+     * Write the json to a temporary file and move it into place, so that the
+     * experiment can be loaded while it is still being updated, e.g. with
+     * --follow, without ever seeing a partially written file.
+     */
+    private static void replace(ObjectWriter writer, Object json, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        writer.writeValue(tmp, json);
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 
 }
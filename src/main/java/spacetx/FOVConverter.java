@@ -0,0 +1,1331 @@
+package spacetx;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.IFormatWriter;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.out.TiffWriter;
+import loci.formats.services.OMEXMLService;
+import ome.xml.meta.OMEXMLMetadataRoot;
+import ome.xml.model.enums.EnumerationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts a single field-of-view by breaking it into one task per plane.
+ *
+ * Plane tasks are submitted to the shared work-stealing executor so that
+ * idle workers can pick up planes from whichever FOV still has work left.
+ * Planes are read concurrently using readers borrowed from the {@link FOVParser},
+ * but are handed to the OME-TIFF writer strictly in order since it tracks
+ * which file each plane was written to. The thread which writes the last
+ * plane also produces the FOV json via {@link FOVWriter} and updates the
+ * {@link ExperimentWriter}.
+ *
+ * Planes larger than the strip budget (by default, those too large for a
+ * single buffer) are instead streamed through the Bio-Formats writer tile by
+ * tile, one plane of the FOV after another.
+ *
+ * Alternatively, {@link #startDirect(Executor)} bypasses the Bio-Formats
+ * writer and streams each plane to disk in strips via a {@link ChannelTiffWriter}.
+ */
+public class FOVConverter {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(FOVConverter.class);
+
+    /**
+     * Files estimated to be larger than this are written as BigTIFF.
+     */
+    private final static long BIGTIFF_THRESHOLD = 4L * 1024 * 1024 * 1024 - 64L * 1024 * 1024;
+
+    /**
+     * Default target size of each strip or tile read when streaming planes.
+     */
+    public final static int STRIP_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Largest plane which can be read into a single buffer.
+     */
+    public final static long MAX_BUFFER = Integer.MAX_VALUE - 8;
+
+    /**
+     * Width and height of the window sampled to estimate percentiles.
+     */
+    private final static int SAMPLE_SIZE = 1024;
+
+    private final static Pattern FILENAME = Pattern.compile("FileName=\"([^\"]*)\"");
+
+    private final static Pattern UUID = Pattern.compile("<UUID FileName=\"([^\"]*)\">([^<]*)</UUID>");
+
+    private final FOVParser parser;
+    private final int series;
+    private final int fov;
+    private final Naming naming;
+    private final File out;
+    private final ExperimentWriter eWriter;
+    private final Trace trace;
+    private final BufferPool pool;
+    private final int planeCount;
+
+    /**
+     * Metadata describing the output: either that of the parser or, if only
+     * part of the series is selected or planes are binned, a single-image
+     * copy reduced accordingly.
+     */
+    private OMEXMLMetadata meta;
+
+    /**
+     * Index of the output image within {@link #meta}.
+     */
+    private int image;
+
+    private final Selection selection;
+
+    /**
+     * Selected source indices of each dimension.
+     */
+    private final int[] zs, cs, ts;
+
+    /**
+     * x, y, width and height of the region read from each plane.
+     */
+    private final int[] region;
+
+    /**
+     * Source plane index of each output plane.
+     */
+    private final int[] source;
+
+    /**
+     * Output file name for each plane, relative to {@link #out}.
+     */
+    private final String[] files;
+
+    /**
+     * z, c, and t of each plane.
+     */
+    private final int[][] zct;
+
+    /**
+     * Completed once the FOV json has been written.
+     */
+    private final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+    /**
+     * Completed like {@link #done}, but only once a failed FOV has been
+     * cleaned up. Returned to callers, while {@link #done} tells the
+     * readers and writers to stop as early as possible.
+     */
+    private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+    /**
+     * Guards against releasing the parser more than once.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Planes which have been read but not yet written, by plane index.
+     * Also serves as the lock for {@link #next} and {@link #draining}.
+     */
+    private final Map<Integer, byte[]> pending = new HashMap<>();
+
+    /**
+     * Index of the next plane to hand to the writer.
+     */
+    private int next = 0;
+
+    /**
+     * Index of the next plane to read. Reads are submitted as planes are
+     * written so that at most {@link #readAhead} planes, and no more than the
+     * {@link #budget} allows, are read but not yet written, since a single
+     * thread drains the ordered writer.
+     */
+    private int nextRead = 0;
+
+    /**
+     * Maximum planes in flight between reading and writing.
+     */
+    private int readAhead = Integer.MAX_VALUE;
+
+    /**
+     * Bounds the bytes in flight together with the other FOVs.
+     */
+    private ReadBudget budget = ReadBudget.UNLIMITED;
+
+    /**
+     * Bytes charged to the budget per plane in flight.
+     */
+    private long budgetBytes;
+
+    /**
+     * Resumes reading once the budget has room again.
+     */
+    private final Runnable retryReads = this::submitReads;
+
+    /**
+     * Whether some thread is currently handing planes to the writer.
+     */
+    private boolean draining = false;
+
+    /**
+     * Null if no OME-TIFFs should be generated.
+     */
+    private IFormatWriter writer;
+
+    /**
+     * Size of the buffer leased for each plane.
+     */
+    private int planeBytes;
+
+    /**
+     * File and directory of the last plane written. Only accessed while holding the writer.
+     */
+    private File current, directory;
+
+    /**
+     * Target size of each strip or tile read when streaming planes.
+     */
+    private int stripBytes = STRIP_BYTES;
+
+    /**
+     * Planes read by the Bio-Formats writer path which are larger than this
+     * are streamed tile by tile rather than read into a single buffer.
+     */
+    private long maxPlaneBytes = MAX_BUFFER;
+
+    /**
+     * Size of the writer's tiles if planes are streamed, otherwise zero.
+     */
+    private int tileX, tileY;
+
+    /**
+     * Executor on which the next streamed plane is submitted.
+     */
+    private Executor executor;
+
+    /**
+     * Set instead of {@link #writer} by {@link #startDirect(Executor)}.
+     */
+    private ChannelTiffWriter tiffs;
+
+    /**
+     * Number of planes not yet completely written by the direct path.
+     */
+    private final AtomicInteger remaining = new AtomicInteger();
+
+    /**
+     * Whether to compute projections and statistics while converting.
+     */
+    private boolean projections = false;
+
+    /**
+     * Null unless {@link #projections} is set and the pixel type is supported.
+     */
+    private Projector projector;
+
+    /**
+     * SHA-256 of the pixels of each plane if deduplicating, otherwise null.
+     */
+    private HashCode[] fingerprints;
+
+    private Binning binning = Binning.NONE;
+
+    private Rescaling rescaling = Rescaling.NONE;
+
+    /**
+     * Null unless converted planes are cached across runs.
+     */
+    private TileCache tileCache;
+
+    /**
+     * Tile cache key of each plane. Chosen when starting.
+     */
+    private String[] keys;
+
+    /**
+     * Number of planes taken from the tile cache.
+     */
+    private final AtomicInteger cached = new AtomicInteger();
+
+    /**
+     * Input values mapped to the output range for each channel, or null
+     * entries to only clamp. Chosen when starting.
+     */
+    private double[][] ranges;
+
+    private Metrics metrics = Metrics.NONE;
+
+    private Progress progress = Progress.NONE;
+
+    /**
+     * Pixels as returned by the reader, recorded when starting.
+     */
+    private int pixelType, samples;
+
+    private boolean interleaved, littleEndian;
+
+    /**
+     * Pixel type written, which differs from {@link #pixelType} when converting.
+     */
+    private int outType;
+
+    /**
+     * Size of the buffer read for each plane (or, when streaming, for each
+     * row of the output), which differs from {@link #planeBytes} when binning.
+     */
+    private int readBytes;
+
+    /**
+     * @param selection region and planes of the series to convert
+     */
+    public FOVConverter(FOVParser parser, int series, int fov, Naming naming, File out,
+                        ExperimentWriter eWriter, Trace trace, BufferPool pool, Selection selection)
+            throws IOException, FormatException, Errors.UsageException {
+        this.parser = parser;
+        this.series = series;
+        this.fov = fov;
+        this.naming = naming;
+        this.out = out;
+        this.eWriter = eWriter;
+        this.trace = trace;
+        this.pool = pool;
+        this.selection = selection;
+
+        // Use the metadata rather than a reader so that nothing need be
+        // initialized when only the json is being (re-)generated.
+        OMEXMLMetadata full = parser.getMetadata();
+        int sizeZ = full.getPixelsSizeZ(series).getValue();
+        int sizeT = full.getPixelsSizeT(series).getValue();
+        int sizeC = full.getChannelCount(series);
+        if (sizeC == 0) {
+            sizeC = full.getPixelsSizeC(series).getValue();
+        }
+        String order = full.getPixelsDimensionOrder(series).getValue();
+        this.region = selection.getRegion(full.getPixelsSizeX(series).getValue(),
+                full.getPixelsSizeY(series).getValue());
+        this.zs = selection.getZ(sizeZ);
+        this.cs = selection.getC(sizeC);
+        this.ts = selection.getT(sizeT);
+        if (selection.isAll()) {
+            this.meta = full;
+            this.image = series;
+        } else {
+            this.meta = exportMetadata();
+            this.image = 0;
+        }
+
+        this.planeCount = zs.length * cs.length * ts.length;
+        this.files = new String[planeCount];
+        this.zct = new int[planeCount][];
+        this.source = new int[planeCount];
+        for (int i = 0; i < planeCount; i++) {
+            zct[i] = FormatTools.getZCTCoords(order, zs.length, cs.length, ts.length, planeCount, i);
+            files[i] = naming.getTiffFilename(fov, zct[i][0], zct[i][2], zct[i][1]);
+            source[i] = FormatTools.getIndex(order, sizeZ, sizeC, sizeT, sizeZ * sizeC * sizeT,
+                    zs[zct[i][0]], cs[zct[i][1]], ts[zct[i][2]]);
+        }
+        parser.retain();
+    }
+
+    /**
+     * Compute Z projections and per-plane statistics of the planes as they
+     * are converted. Must be called before starting. Has no effect if no
+     * OME-TIFFs are generated since no pixels are read.
+     */
+    public void setProjections(boolean projections) {
+        this.projections = projections;
+    }
+
+    /**
+     * Fingerprint the pixels of every plane and replace the files of planes
+     * identical to an earlier one by hard links. Must be called before
+     * starting. Has no effect if no OME-TIFFs are generated.
+     */
+    public void setDedup(boolean dedup) {
+        this.fingerprints = dedup ? new HashCode[planeCount] : null;
+    }
+
+    /**
+     * Bin every plane while converting. Must be called before starting.
+     */
+    public void setBinning(Binning binning) throws FormatException, Errors.UsageException {
+        if (binning.size(region[2]) < 1 || binning.size(region[3]) < 1) {
+            Errors.badBinning.raise(String.format("%dx%d plane of fov %d is smaller than %d",
+                    region[2], region[3], fov, binning.getFactor()));
+        }
+        this.binning = binning;
+        if (!binning.isNone()) {
+            this.meta = exportMetadata();
+            this.image = 0;
+        }
+    }
+
+    /**
+     * Convert the pixel type and rescale intensities while converting.
+     * Must be called before starting.
+     */
+    public void setRescaling(Rescaling rescaling) throws FormatException {
+        this.rescaling = rescaling;
+        if (!rescaling.isNone()) {
+            this.meta = exportMetadata();
+            this.image = 0;
+        }
+    }
+
+    /**
+     * Take planes from the cache if they were converted by an earlier run
+     * with the same options, and add all other planes to it. Planes which
+     * are streamed tile by tile to the Bio-Formats writer are not cached.
+     * Must be called before starting.
+     */
+    public void setTileCache(TileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Bound the memory held per plane task: planes larger than this many
+     * bytes are read and written in strips or tiles of roughly this size.
+     * {@link #startDirect(Executor)} always streams in strips of this size.
+     * Must be called before starting.
+     */
+    public void setStripBytes(int stripBytes) {
+        this.stripBytes = stripBytes;
+        this.maxPlaneBytes = Math.min(MAX_BUFFER, stripBytes);
+    }
+
+    /**
+     * Bound the planes read ahead of the ordered Bio-Formats writer, and so
+     * the memory held by this FOV, e.g. to the depth of the buffer pool.
+     * Must be called before starting.
+     */
+    public void setReadAhead(int planes) {
+        this.readAhead = Math.max(1, planes);
+    }
+
+    /**
+     * Bound the bytes read ahead of the writers of all FOVs sharing the
+     * budget. Must be called before starting.
+     */
+    public void setReadBudget(ReadBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Report written planes and the completion of the FOV. Must be called
+     * before starting.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Report the same events to a listener. Must be called before starting.
+     */
+    public void setProgress(Progress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Record the layout of the pixels returned by the reader.
+     */
+    private void describe(IFormatReader reader) {
+        pixelType = reader.getPixelType();
+        samples = reader.getRGBChannelCount();
+        interleaved = reader.isInterleaved();
+        littleEndian = reader.isLittleEndian();
+        outType = rescaling.getPixelType(pixelType);
+    }
+
+    /**
+     * Choose the input range of each channel which is mapped to the output
+     * range: either the fixed range or that between the percentiles of a
+     * window at the centre of the channel's middle Z plane of the first
+     * timepoint, so that all planes of a channel are scaled alike.
+     */
+    private void chooseRanges(IFormatReader reader) throws FormatException, IOException {
+        ranges = new double[cs.length][];
+        if (rescaling.getMode() != Rescaling.Mode.percentile) {
+            Arrays.fill(ranges, rescaling.getRange());
+            return;
+        }
+        int w = Math.min(region[2], SAMPLE_SIZE);
+        int h = Math.min(region[3], SAMPLE_SIZE);
+        byte[] sample = new byte[w * h * samples * FormatTools.getBytesPerPixel(pixelType)];
+        for (int no = 0; no < planeCount; no++) {
+            if (zct[no][0] != zs.length / 2 || zct[no][2] != 0) {
+                continue;
+            }
+            int c = zct[no][1];
+            reader.openBytes(source[no], sample, region[0] + (region[2] - w) / 2,
+                    region[1] + (region[3] - h) / 2, w, h);
+            // Planes are binned before they are rescaled, so bin the sample alike
+            byte[] binned = sample;
+            if (!binning.isNone()) {
+                binned = new byte[binning.size(w) * binning.size(h) * samples * FormatTools.getBytesPerPixel(pixelType)];
+                binning.bin(sample, w, h, binned, pixelType, samples, interleaved, littleEndian);
+            }
+            ranges[c] = rescaling.getRange(binned, binning.size(w) * binning.size(h) * samples,
+                    pixelType, littleEndian);
+            LOGGER.info("fov {} channel {}: rescaling {} to {}", fov, c, ranges[c][0], ranges[c][1]);
+        }
+    }
+
+    /**
+     * Key every plane by the input, its index and every setting which
+     * affects the converted pixels.
+     */
+    private void chooseKeys(IFormatReader reader) {
+        if (tileCache == null) {
+            return;
+        }
+        String identity = tileCache.identify(parser.getInput(), reader.getUsedFiles());
+        String options = String.format("region=%s bin=%d,%s pixels=%s rescale=%s ranges=%s layout=%d,%d,%b,%b",
+                Arrays.toString(region), binning.getFactor(), binning.getMode(),
+                FormatTools.getPixelTypeString(outType), rescaling, Arrays.deepToString(ranges),
+                pixelType, samples, interleaved, littleEndian);
+        keys = new String[planeCount];
+        for (int no = 0; no < planeCount; no++) {
+            keys[no] = tileCache.key(identity, series, source[no], options);
+        }
+    }
+
+    /**
+     * @return the hash of the converted plane in the tile cache, or null
+     */
+    private HashCode lookup(int no, long bytes) {
+        return tileCache == null ? null : tileCache.lookup(keys[no], bytes);
+    }
+
+    /**
+     * @return a leased buffer holding the cached plane, or null if it could not be read
+     */
+    private byte[] load(HashCode hash) {
+        byte[] buf = pool.lease(planeBytes);
+        if (tileCache.load(hash, buf)) {
+            cached.incrementAndGet();
+            return buf;
+        }
+        pool.release(buf);
+        return null;
+    }
+
+    /**
+     * Bin and convert the pixels read from a region of inX x inY pixels of
+     * a plane. Takes ownership of the leased buffer and returns a leased
+     * buffer, the same one if there is nothing to do.
+     */
+    private byte[] transform(int no, byte[] buf, int inX, int inY) {
+        int count = binning.size(inX) * binning.size(inY) * samples;
+        try {
+            if (!binning.isNone()) {
+                byte[] binned = pool.lease(count * FormatTools.getBytesPerPixel(pixelType));
+                try {
+                    binning.bin(buf, inX, inY, binned, pixelType, samples, interleaved, littleEndian);
+                } finally {
+                    pool.release(buf);
+                    buf = binned;
+                }
+            }
+            if (!rescaling.isNone()) {
+                byte[] converted = pool.lease(count * FormatTools.getBytesPerPixel(outType));
+                try {
+                    rescaling.convert(buf, pixelType, count, ranges[zct[no][1]], converted, littleEndian);
+                } finally {
+                    pool.release(buf);
+                    buf = converted;
+                }
+            }
+            return buf;
+        } catch (Throwable t) {
+            pool.release(buf);
+            throw t;
+        }
+    }
+
+    private void createProjector(IFormatReader reader) {
+        if (!projections) {
+            return;
+        }
+        if (!Projector.supports(outType, reader.getRGBChannelCount())
+                || (long) binning.size(region[2]) * binning.size(region[3]) * 4 > Integer.MAX_VALUE) {
+            LOGGER.warn("projections not supported for {} pixels with {} samples of fov {}",
+                    FormatTools.getPixelTypeString(outType),
+                    reader.getRGBChannelCount(), fov);
+            return;
+        }
+        projector = new Projector(naming, fov, out, trace, zct,
+                binning.size(region[2]), binning.size(region[3]),
+                zs.length, cs.length, ts.length, outType, reader.isLittleEndian());
+    }
+
+    /**
+     * Submit one task per plane to the executor.
+     *
+     * @param executor shared by all FOVs
+     * @param writer null if no OME-TIFFs should be generated
+     * @return completed once the FOV json has been written
+     */
+    public CompletableFuture<Integer> start(Executor executor, IFormatWriter writer) {
+        this.writer = writer;
+        this.executor = executor;
+        if (writer == null) {
+            // No pixels are read, so there is nothing to compare
+            fingerprints = null;
+        }
+        metrics.fovStarted(writer == null ? 0 : planeCount);
+        progress.fovStarted(fov, parser.getInput(), series, writer == null ? 0 : planeCount, result);
+        try {
+            if (writer == null || planeCount == 0) {
+                finish();
+            } else {
+                File companion = new File(out, naming.getCompanionFilename(fov));
+                companion.getParentFile().mkdirs();
+                DynamicMetadataOptions options = new DynamicMetadataOptions();
+                options.set("ometiff.companion", companion.getPath());
+                writer.setMetadataOptions(options);
+                writer.setMetadataRetrieve(exportMetadata());
+                IFormatReader reader = parser.borrow(series);
+                try {
+                    describe(reader);
+                    writer.setInterleaved(interleaved);
+                    long pixelBytes = (long) samples * FormatTools.getBytesPerPixel(pixelType);
+                    long readSize = (long) region[2] * region[3] * pixelBytes;
+                    long planeSize = (long) binning.size(region[2]) * binning.size(region[3])
+                            * samples * FormatTools.getBytesPerPixel(outType);
+                    long fileSize = planeSize * (naming.isMultipage() ? planeCount : 1);
+                    if (writer instanceof TiffWriter && fileSize >= BIGTIFF_THRESHOLD) {
+                        ((TiffWriter) writer).setBigTiff(true);
+                    }
+                    if (readSize > maxPlaneBytes) {
+                        chooseTiles(pixelBytes);
+                    } else {
+                        readBytes = (int) readSize;
+                        planeBytes = (int) planeSize;
+                    }
+                    chooseRanges(reader);
+                    chooseKeys(reader);
+                    createProjector(reader);
+                } finally {
+                    parser.release(reader);
+                }
+                writer.setWriteSequentially(true);
+                if (tileX > 0) {
+                    executor.execute(() -> streamToWriter(0));
+                } else {
+                    budgetBytes = Math.max(readBytes, planeBytes);
+                    submitReads();
+                }
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+        return result;
+    }
+
+    /**
+     * Configure the writer for tiles of which each is read from roughly
+     * {@link #stripBytes} of input: full-width strips if at least 16 rows
+     * fit, otherwise square tiles. TIFF tiles are multiples of 16 pixels,
+     * so the writer may adjust the sizes.
+     *
+     * @param pixelBytes bytes of all samples of a single pixel
+     */
+    private void chooseTiles(long pixelBytes) throws FormatException {
+        int factor = binning.getFactor();
+        int sizeX = binning.size(region[2]);
+        int sizeY = binning.size(region[3]);
+        long binnedPixelBytes = pixelBytes * factor * factor;
+        long rows = stripBytes / (sizeX * binnedPixelBytes);
+        int w = sizeX;
+        int h = (int) Math.min(sizeY, rows);
+        if (rows < 16) {
+            int side = (int) Math.max(16, Math.sqrt((double) stripBytes / binnedPixelBytes)) / 16 * 16;
+            w = Math.min(sizeX, side);
+            h = Math.min(sizeY, side);
+        }
+        tileX = writer.setTileSizeX(w);
+        tileY = writer.setTileSizeY(h);
+        LOGGER.debug("streaming planes of fov {} in {}x{} tiles", fov, tileX, tileY);
+    }
+
+    /**
+     * Submit one task per plane which streams the plane to disk in strips of
+     * roughly {@link #setStripBytes(int) the strip size} via a
+     * {@link ChannelTiffWriter}. Since the location of every strip is known
+     * up-front, planes are written as soon as they are read without being
+     * ordered or held in memory as a whole.
+     *
+     * @param executor shared by all FOVs
+     * @return completed once the FOV json has been written
+     */
+    public CompletableFuture<Integer> startDirect(Executor executor) {
+        metrics.fovStarted(planeCount);
+        progress.fovStarted(fov, parser.getInput(), series, planeCount, result);
+        try {
+            if (planeCount == 0) {
+                finish();
+                return result;
+            }
+            IFormatReader reader = parser.borrow(series);
+            try {
+                describe(reader);
+                // Each binned row is read as factor rows of the input
+                long rowBytes = (long) region[2] * samples * FormatTools.getBytesPerPixel(pixelType)
+                        * binning.getFactor();
+                if (rowBytes > Integer.MAX_VALUE) {
+                    throw new FormatException(String.format(
+                            "row too large for a single buffer (%d bytes)", rowBytes));
+                }
+                readBytes = (int) rowBytes;
+                tiffs = new ChannelTiffWriter(out, files, naming.getCompanionFilename(fov),
+                        naming.isMultipage(), binning.size(region[2]), binning.size(region[3]),
+                        samples, outType, littleEndian, interleaved,
+                        (int) Math.max(1, stripBytes / rowBytes));
+                chooseRanges(reader);
+                chooseKeys(reader);
+                createProjector(reader);
+            } finally {
+                parser.release(reader);
+            }
+            remaining.set(planeCount);
+            for (int i = 0; i < planeCount; i++) {
+                final int no = i;
+                executor.execute(() -> stream(no));
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+        return result;
+    }
+
+    /**
+     * Task body for {@link #startDirect(Executor)}: read a single plane
+     * strip by strip, writing each straight from the array it was read into.
+     * The last plane to complete writes the companion.
+     */
+    private void stream(int no) {
+        if (done.isDone()) {
+            return; // Another plane has already failed
+        }
+        try {
+            Events.PlaneWrite event = new Events.PlaneWrite();
+            event.begin();
+            long start = trace.start();
+            // Projections need the pixels, so only copy from the cache without them
+            HashCode hash = projector == null ? lookup(no, tiffs.getPlaneBytes()) : null;
+            if (hash != null) {
+                try {
+                    tiffs.copyPlane(no, tileCache.blob(hash));
+                    cached.incrementAndGet();
+                } finally {
+                    trace.end(Trace.Phase.write, fov, files[no], start);
+                }
+            } else {
+                hash = streamPlane(no, start);
+            }
+            event.file = files[no];
+            event.plane = naming.isMultipage() ? no : 0;
+            event.bytes = tiffs.getPlaneBytes();
+            event.commit();
+            metrics.planeWritten(tiffs.getPlaneBytes());
+            progress.planeWritten(fov, no, tiffs.getPlaneBytes());
+            if (fingerprints != null) {
+                fingerprints[no] = hash;
+            }
+            if (projector != null) {
+                projector.done(no);
+            }
+            if (remaining.decrementAndGet() == 0 && !done.isDone()) {
+                tiffs.close(exportMetadata(), zct);
+                finish();
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Read, convert and write a single plane of the direct path strip by strip.
+     *
+     * @return the hash of the plane if deduplicating or caching, otherwise null
+     */
+    private HashCode streamPlane(int no, long start) throws IOException, FormatException {
+        IFormatReader reader = parser.borrow(series);
+        FileChannel channel = null;
+        Hasher hasher = fingerprints == null && tileCache == null ? null : Hashing.sha256().newHasher();
+        try {
+            int factor = binning.getFactor();
+            int sizeX = binning.size(region[2]);
+            int sizeY = binning.size(region[3]);
+            int rows = tiffs.getRowsPerStrip();
+            for (int y = 0; y < sizeY && !done.isDone(); y += rows) {
+                int h = Math.min(rows, sizeY - y);
+                byte[] buf = pool.lease(h * readBytes);
+                try {
+                    reader.openBytes(source[no], buf, region[0], region[1] + y * factor,
+                            region[2], h * factor);
+                } catch (Throwable t) {
+                    pool.release(buf);
+                    throw t;
+                }
+                buf = transform(no, buf, region[2], h * factor);
+                try {
+                    if (hasher != null) {
+                        hasher.putBytes(buf);
+                    }
+                    if (projector != null) {
+                        projector.add(no, buf, y * sizeX);
+                    }
+                    channel = tiffs.writeStrip(no, y, h, ByteBuffer.wrap(buf), channel);
+                } finally {
+                    pool.release(buf);
+                }
+            }
+        } finally {
+            parser.release(reader);
+            tiffs.finishPlane(channel);
+            trace.end(Trace.Phase.write, fov, files[no], start);
+        }
+        if (hasher == null || done.isDone()) {
+            return null; // not all strips may have been written
+        }
+        HashCode hash = hasher.hash();
+        if (tileCache != null) {
+            tileCache.store(keys[no], hash, new File(out, files[no]),
+                    tiffs.getPixelOffset(no), tiffs.getPlaneBytes());
+        }
+        return hash;
+    }
+
+    /**
+     * Copy the metadata for this series into a new, single-image
+     * object for the writer, reduced to the selection if any.
+     */
+    private OMEXMLMetadata exportMetadata() throws FormatException {
+        try {
+            OMEXMLService xml = new ServiceFactory().getInstance(OMEXMLService.class);
+            OMEXMLMetadata copy = xml.createOMEXMLMetadata(xml.getOMEXML(parser.getMetadata()));
+            OMEXMLMetadataRoot root = (OMEXMLMetadataRoot) copy.getRoot();
+            OMEXMLMetadataRoot export = new OMEXMLMetadataRoot();
+            export.addImage(root.getImage(series));
+            for (int i = 0; i < root.sizeOfInstrumentList(); i++) {
+                export.addInstrument(root.getInstrument(i));
+            }
+            copy.setRoot(export);
+            if (!selection.isAll()) {
+                Selection.apply(copy, region, zs, cs, ts);
+            }
+            binning.apply(copy);
+            rescaling.apply(copy);
+            return copy;
+        } catch (EnumerationException exc) {
+            throw new FormatException("Error setting pixel type", exc);
+        } catch (ServiceException | DependencyException exc) {
+            throw new FormatException("Error creating metadata service");
+        }
+    }
+
+    /**
+     * Task body: read a single plane and pass it on for writing.
+     */
+    private void read(int no) {
+        if (done.isDone()) {
+            return; // Another plane has already failed
+        }
+        try {
+            HashCode hash = lookup(no, planeBytes);
+            byte[] buf = hash == null ? null : load(hash);
+            if (buf == null) {
+                hash = null;
+                buf = readPlane(no);
+            }
+            try {
+                if (hash == null && (fingerprints != null || tileCache != null)) {
+                    hash = Hashing.sha256().hashBytes(buf);
+                    if (tileCache != null) {
+                        tileCache.store(keys[no], hash, buf);
+                    }
+                }
+                if (fingerprints != null) {
+                    fingerprints[no] = hash;
+                }
+                if (projector != null) {
+                    projector.add(no, buf, 0);
+                    projector.done(no);
+                }
+            } catch (Throwable t) {
+                pool.release(buf);
+                throw t;
+            }
+            write(no, buf);
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Read and convert a single plane.
+     *
+     * @return a leased buffer holding the plane
+     */
+    private byte[] readPlane(int no) throws IOException, FormatException {
+        byte[] buf = pool.lease(readBytes);
+        Events.PlaneRead event = new Events.PlaneRead();
+        event.begin();
+        long start = trace.start();
+        boolean read = false;
+        try {
+            IFormatReader reader = parser.borrow(series);
+            try {
+                reader.openBytes(source[no], buf, region[0], region[1], region[2], region[3]);
+                read = true;
+            } finally {
+                parser.release(reader);
+            }
+        } finally {
+            trace.end(Trace.Phase.read, fov, start);
+            if (!read) {
+                pool.release(buf);
+            }
+        }
+        event.fov = fov;
+        event.series = series;
+        event.plane = no;
+        event.bytes = buf.length;
+        event.commit();
+        return transform(no, buf, region[2], region[3]);
+    }
+
+    /**
+     * Task body for planes larger than {@link #maxPlaneBytes}: read the plane
+     * tile by tile and hand each tile straight to the writer, so that only a
+     * single tile is held at a time. Since the writer requires planes in
+     * order, the planes of the FOV are streamed one after another: the task
+     * for the next plane is submitted once this one has been written.
+     */
+    private void streamToWriter(int no) {
+        if (done.isDone()) {
+            return; // Another plane has already failed
+        }
+        try {
+            Events.PlaneWrite event = new Events.PlaneWrite();
+            event.begin();
+            long start = trace.start();
+            IFormatReader reader = parser.borrow(series);
+            Hasher hasher = fingerprints == null ? null : Hashing.sha256().newHasher();
+            int pixelBytes = FormatTools.getBytesPerPixel(pixelType) * samples;
+            long bytes = 0;
+            try {
+                int page = naming.isMultipage() ? no : 0;
+                int factor = binning.getFactor();
+                int sizeX = binning.size(region[2]);
+                int sizeY = binning.size(region[3]);
+                synchronized (writer) {
+                    select(no);
+                }
+                for (int y = 0; y < sizeY && !done.isDone(); y += tileY) {
+                    int h = Math.min(tileY, sizeY - y);
+                    for (int x = 0; x < sizeX && !done.isDone(); x += tileX) {
+                        int w = Math.min(tileX, sizeX - x);
+                        byte[] buf = pool.lease(w * h * factor * factor * pixelBytes);
+                        try {
+                            reader.openBytes(source[no], buf, region[0] + x * factor, region[1] + y * factor,
+                                    w * factor, h * factor);
+                        } catch (Throwable t) {
+                            pool.release(buf);
+                            throw t;
+                        }
+                        buf = transform(no, buf, w * factor, h * factor);
+                        try {
+                            if (hasher != null) {
+                                hasher.putBytes(buf);
+                            }
+                            if (projector != null) {
+                                projector.add(no, buf, x, y, w);
+                            }
+                            synchronized (writer) {
+                                ensureRunning();
+                                writer.saveBytes(page, buf, x, y, w, h);
+                            }
+                            bytes += buf.length;
+                        } finally {
+                            pool.release(buf);
+                        }
+                    }
+                }
+            } finally {
+                parser.release(reader);
+                trace.end(Trace.Phase.write, fov, files[no], start);
+            }
+            event.file = files[no];
+            event.plane = naming.isMultipage() ? no : 0;
+            event.bytes = bytes;
+            event.commit();
+            metrics.planeWritten(bytes);
+            progress.planeWritten(fov, no, bytes);
+            if (hasher != null) {
+                fingerprints[no] = hasher.hash();
+            }
+            if (projector != null) {
+                projector.done(no);
+            }
+            if (done.isDone()) {
+                return;
+            }
+            if (no < planeCount - 1) {
+                executor.execute(() -> streamToWriter(no + 1));
+                return;
+            }
+            synchronized (writer) {
+                writer.close();
+                relocateCompanion();
+            }
+            finish();
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Stop a writer task of a FOV which has failed or been cancelled since it
+     * started, so that files which {@link #fail(Throwable)} has removed are not
+     * created again. Must hold the writer.
+     */
+    private void ensureRunning() {
+        if (done.isDone()) {
+            throw new CancellationException(String.format("fov %d stopped", fov));
+        }
+    }
+
+    /**
+     * Point the writer at the file of the plane. Must hold the writer.
+     */
+    private void select(int index) throws IOException, FormatException {
+        ensureRunning();
+        File file = new File(out, files[index]);
+        File parent = file.getParentFile();
+        if (!parent.equals(directory)) {
+            parent.mkdirs(); // for naming strategies which shard
+            directory = parent;
+        }
+        if (!file.equals(current)) {
+            writer.changeOutputFile(file.getPath());
+            current = file;
+        }
+    }
+
+    /**
+     * Queue the plane and, unless another thread is already doing so,
+     * write all planes which are now available in order. Takes ownership
+     * of the leased buffer.
+     */
+    private void write(int no, byte[] buf) throws IOException, FormatException {
+        synchronized (pending) {
+            if (done.isDone()) {
+                pool.release(buf); // Failed while this plane was being read
+                return;
+            }
+            pending.put(no, buf);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            int index;
+            byte[] plane;
+            synchronized (pending) {
+                plane = pending.remove(next);
+                if (plane == null) {
+                    draining = false;
+                    return;
+                }
+                index = next++;
+            }
+            Events.PlaneWrite event = new Events.PlaneWrite();
+            event.begin();
+            long start = trace.start();
+            try {
+                synchronized (writer) {
+                    // Planes are written in order, so the page is the plane index if they share a file.
+                    try {
+                        select(index);
+                        writer.saveBytes(naming.isMultipage() ? index : 0, plane);
+                        event.file = files[index];
+                        event.plane = naming.isMultipage() ? index : 0;
+                        event.bytes = plane.length;
+                        event.commit();
+                        metrics.planeWritten(plane.length);
+                        progress.planeWritten(fov, index, plane.length);
+                    } finally {
+                        pool.release(plane);
+                    }
+                    if (index == planeCount - 1) {
+                        writer.close();
+                        relocateCompanion();
+                    }
+                }
+            } finally {
+                budget.release(budgetBytes);
+            }
+            trace.end(Trace.Phase.write, fov, files[index], start);
+            metrics.pending(-1);
+            if (index == planeCount - 1) {
+                finish();
+                return;
+            }
+            submitReads();
+        }
+    }
+
+    /**
+     * Submit reads of the following planes while fewer than {@link #readAhead}
+     * are in flight and the shared budget admits them. A FOV with nothing in
+     * flight is always admitted so that planes larger than the budget progress.
+     * If refused, this is run again once another FOV has written a plane.
+     */
+    private void submitReads() {
+        while (true) {
+            int no;
+            synchronized (pending) {
+                if (done.isDone() || nextRead >= planeCount || nextRead - next >= readAhead
+                        || !budget.tryAcquire(budgetBytes, nextRead == next, retryReads)) {
+                    return;
+                }
+                no = nextRead++;
+            }
+            metrics.pending(1);
+            executor.execute(() -> read(no));
+        }
+    }
+
+    /**
+     * The OME-TIFF writer records only the name of each TIFF in the companion
+     * file. If the naming strategy places TIFFs in a different directory than
+     * the companion, rewrite those names to paths relative to the companion.
+     */
+    private void relocateCompanion() throws IOException {
+        Path companion = new File(out, naming.getCompanionFilename(fov)).toPath().toAbsolutePath();
+        Path base = companion.getParent();
+        Map<String, String> relocated = new HashMap<>();
+        for (String file : files) {
+            Path tiff = new File(out, file).toPath().toAbsolutePath();
+            if (!base.equals(tiff.getParent())) {
+                String relative = base.relativize(tiff).toString().replace(File.separatorChar, '/');
+                relocated.put(tiff.getFileName().toString(), relative);
+            }
+        }
+        if (relocated.isEmpty() || !Files.exists(companion)) {
+            return;
+        }
+        String xml = new String(Files.readAllBytes(companion), StandardCharsets.UTF_8);
+        Matcher m = FILENAME.matcher(xml);
+        StringBuffer sb = new StringBuffer(xml.length() + 16 * relocated.size());
+        while (m.find()) {
+            String name = relocated.getOrDefault(m.group(1), m.group(1));
+            m.appendReplacement(sb, Matcher.quoteReplacement("FileName=\"" + name + "\""));
+        }
+        m.appendTail(sb);
+        Files.write(companion, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replace the file of every plane whose pixels are identical to those of
+     * an earlier plane by a hard link to the earlier file, and point the
+     * companion at the earlier file and its UUID. Planes sharing a multi-page
+     * file are left as they are.
+     *
+     * @return the earlier file by duplicate file name, for reusing its hash
+     */
+    private Map<String, String> deduplicate() throws IOException {
+        Map<String, String> aliases = new HashMap<>();
+        if (fingerprints == null || naming.isMultipage()) {
+            return aliases;
+        }
+        Map<HashCode, Integer> first = new HashMap<>();
+        for (int i = 0; i < planeCount; i++) {
+            if (fingerprints[i] == null) {
+                continue;
+            }
+            Integer original = first.putIfAbsent(fingerprints[i], i);
+            if (original == null) {
+                continue;
+            }
+            Path link = new File(out, files[i]).toPath();
+            Path target = new File(out, files[original]).toPath();
+            Files.delete(link);
+            try {
+                Files.createLink(link, target);
+            } catch (IOException | UnsupportedOperationException e) {
+                LOGGER.debug("cannot link {} to {}, copying instead", link, target, e);
+                Files.copy(target, link);
+            }
+            aliases.put(files[i], files[original]);
+        }
+        if (aliases.isEmpty()) {
+            return aliases;
+        }
+        LOGGER.info("fov {}: {} of {} planes are duplicates", fov, aliases.size(), planeCount);
+
+        // UUIDs in the companion are by name relative to the companion
+        Path companion = new File(out, naming.getCompanionFilename(fov)).toPath().toAbsolutePath();
+        Path base = companion.getParent();
+        Map<String, String> relative = new HashMap<>();
+        for (Map.Entry<String, String> alias : aliases.entrySet()) {
+            relative.put(relativize(base, alias.getKey()), relativize(base, alias.getValue()));
+        }
+        String xml = new String(Files.readAllBytes(companion), StandardCharsets.UTF_8);
+        Map<String, String> uuids = new HashMap<>();
+        Matcher m = UUID.matcher(xml);
+        while (m.find()) {
+            uuids.putIfAbsent(m.group(1), m.group(2));
+        }
+        m.reset();
+        StringBuffer sb = new StringBuffer(xml.length());
+        while (m.find()) {
+            String name = relative.getOrDefault(m.group(1), m.group(1));
+            String uuid = uuids.getOrDefault(name, m.group(2));
+            m.appendReplacement(sb, Matcher.quoteReplacement(
+                    "<UUID FileName=\"" + name + "\">" + uuid + "</UUID>"));
+        }
+        m.appendTail(sb);
+        Files.write(companion, sb.toString().getBytes(StandardCharsets.UTF_8));
+        return aliases;
+    }
+
+    private String relativize(Path base, String file) {
+        Path tiff = new File(out, file).toPath().toAbsolutePath();
+        return base.relativize(tiff).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Write the FOV json and update the experiment.
+     */
+    private void finish() throws IOException, FormatException {
+        if (cached.get() > 0) {
+            LOGGER.info("fov {}: {} of {} planes from the tile cache", fov, cached.get(), planeCount);
+        }
+        Map<String, String> aliases = deduplicate();
+        PlanePositions positions = new PlanePositions(meta, image, series);
+        FOVWriter fovWriter = new FOVWriter(meta, positions, naming, fov, out, trace);
+        fovWriter.setProjector(projector);
+        if (parser.getPlateCount() > 0) {
+            fovWriter.setScreenLayout(parser.getScreenLayout(), series);
+        }
+        fovWriter.setAliases(aliases);
+        fovWriter.write();
+        eWriter.addFOV(fov, positions);
+        eWriter.write();
+        close();
+        if (done.complete(0)) {
+            metrics.fovDone(true);
+            progress.fovDone(fov, null);
+            result.complete(0);
+        }
+    }
+
+    /**
+     * Stop converting this FOV: no further planes are read, resources are
+     * released and the files written so far are removed.
+     */
+    public void cancel() {
+        fail(new CancellationException(String.format("fov %d cancelled", fov)));
+    }
+
+    /**
+     * Remove the plane files, projections and companion of a FOV which could
+     * not be completed, along with any directories which are left empty.
+     */
+    private void deletePartial() throws IOException {
+        List<String> names = new ArrayList<>(Arrays.asList(files));
+        if (projector != null) {
+            names.addAll(projector.getFilenames());
+        }
+        names.add(naming.getCompanionFilename(fov));
+        for (String name : names) {
+            File file = new File(out, name);
+            Files.deleteIfExists(file.toPath());
+            // Only succeeds while empty, e.g. per-FOV and per-round directories
+            File dir = file.getParentFile();
+            while (!dir.equals(out) && dir.delete()) {
+                dir = dir.getParentFile();
+            }
+        }
+    }
+
+    private void fail(Throwable t) {
+        if (done.completeExceptionally(t)) {
+            metrics.fovDone(false);
+            int unwritten;
+            synchronized (pending) {
+                // Planes submitted for reading which will not be written
+                unwritten = nextRead - next;
+                metrics.pending(-unwritten);
+                for (byte[] buf : pending.values()) {
+                    pool.release(buf);
+                }
+                pending.clear();
+            }
+            budget.release(unwritten * budgetBytes);
+            try {
+                if (tiffs != null) {
+                    tiffs.abort();
+                }
+                if (writer != null) {
+                    synchronized (writer) {
+                        writer.close();
+                    }
+                }
+            } catch (IOException e) {
+                t.addSuppressed(e);
+            }
+            try {
+                close();
+            } catch (IOException e) {
+                t.addSuppressed(e);
+            }
+            try {
+                deletePartial();
+            } catch (IOException e) {
+                t.addSuppressed(e);
+            }
+            progress.fovDone(fov, t);
+            result.completeExceptionally(t);
+        }
+    }
+
+    private void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            parser.close();
+        }
+    }
+
+}
@@ -12,9 +12,28 @@ import loci.formats.ome.OMEXMLMetadata;
 import loci.formats.services.OMEXMLService;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
-
+/**
+ * Loads the metadata for a single input and hands out readers for it.
+ *
+ * Since readers are not thread-safe, planes which are read concurrently
+ * each borrow a reader via {@link #borrow(int)}. The reader used to parse
+ * the metadata is the first of these. Further readers are created on
+ * demand from the factory and are closed along with it once every user
+ * registered via {@link #retain()} has called {@link #close()}.
+ * How many further readers may be open across all inputs can be limited
+ * via {@link #setReaderPermits(Semaphore)}.
+ *
+ * If a {@link MetadataCache} holds an entry for the input, the metadata is
+ * taken from there and no reader is initialized until one is borrowed.
+ */
 public class FOVParser {
 
     private String input;
@@ -25,17 +44,101 @@ public class FOVParser {
 
     private OMEXMLMetadata meta;
 
+    private ScreenLayout layout;
+
     private IFormatReader reader;
 
+    private final Callable<IFormatReader> factory;
+
+    private final Trace trace;
+
+    private final Queue<IFormatReader> idle = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Readers which have not yet been initialized, i.e. the initial reader
+     * when the metadata was loaded from the cache.
+     */
+    private final Queue<IFormatReader> unopened = new ConcurrentLinkedQueue<>();
+
+    private final Queue<IFormatReader> readers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger users = new AtomicInteger(1);
+
+    /**
+     * Limits the readers opened beyond the first of each input, shared by
+     * all inputs of a conversion. Null for no limit.
+     */
+    private Semaphore permits;
+
+    /**
+     * Readers opened or being opened, and how many of them hold a permit.
+     * Guarded by {@link #idle}.
+     */
+    private int opened = 0, permitted = 0;
+
     public FOVParser(IFormatReader reader, String input) throws IOException, FormatException {
+        this(reader, input, null, Trace.NONE, null);
+    }
+
+    /**
+     * @param factory creates additional readers. May be null.
+     * @param cache previously parsed metadata. May be null.
+     */
+    public FOVParser(IFormatReader reader, String input, Callable<IFormatReader> factory,
+                     Trace trace, MetadataCache cache)
+            throws IOException, FormatException {
 
         this.reader = reader;
         this.input = input;
+        this.factory = factory;
+        this.trace = trace;
+
+        if (cache != null) {
+            meta = cache.load(input);
+            if (meta != null) {
+                plateCount = meta.getPlateCount();
+                seriesCount = meta.getImageCount();
+                unopened.add(reader);
+                return; // EARLY EXIT! Reader is initialized on demand.
+            }
+        }
 
         // First use the generic reader object to load the metadata
+        meta = configure(reader);
+        Events.ReaderInit event = new Events.ReaderInit();
+        event.begin();
+        long start = trace.start();
+        reader.setId(input);
+        trace.end(Trace.Phase.setId, Trace.NO_FOV, input, start);
+        MetadataStore store = reader.getMetadataStore();
+        // doPlane: true is critical for position information
+        start = trace.start();
+        MetadataTools.populatePixels(store, reader, true, false);
+        trace.end(Trace.Phase.populatePixels, Trace.NO_FOV, input, start);
+
+        plateCount = meta.getPlateCount();
+        seriesCount = reader.getSeriesCount();
+        event.input = input;
+        event.populated = true;
+        event.seriesCount = seriesCount;
+        event.commit();
+        readers.add(reader);
+        idle.add(reader);
+        opened = 1;
+
+        if (cache != null) {
+            cache.save(input, reader.getUsedFiles(), meta);
+        }
+    }
+
+    /**
+     * Apply the same settings to every reader so that memo files created
+     * by one of them can be re-used by the others.
+     */
+    private static OMEXMLMetadata configure(IFormatReader reader) throws FormatException {
         DynamicMetadataOptions options = new DynamicMetadataOptions();
         options.setValidate(true);
-        meta = null;
+        OMEXMLMetadata meta;
         try {
             OMEXMLService xml = new ServiceFactory().getInstance(OMEXMLService.class);
             meta = xml.createOMEXMLMetadata();
@@ -48,14 +151,7 @@ public class FOVParser {
         reader.setMetadataFiltered(true);
         reader.setOriginalMetadataPopulated(true);
         reader.setMetadataStore(meta);
-        reader.setId(input);
-        MetadataStore store = reader.getMetadataStore();
-        // doPlane: true is critical for position information
-        MetadataTools.populatePixels(store, reader, true, false);
-
-        plateCount = meta.getPlateCount();
-        seriesCount = reader.getSeriesCount();
-
+        return meta;
     }
 
     public String getInput() {
@@ -70,15 +166,161 @@ public class FOVParser {
         return seriesCount;
     }
 
+    /**
+     * @return the FOV order of all fields of a screen. Only valid if
+     *         {@link #getPlateCount()} is positive.
+     */
+    public synchronized ScreenLayout getScreenLayout() {
+        if (layout == null) {
+            layout = new ScreenLayout(meta, seriesCount);
+        }
+        return layout;
+    }
+
     public OMEXMLMetadata getMetadata() {
         return meta;
     }
 
+    /**
+     * Note: the reader will not have been initialized if the metadata
+     * was loaded from a {@link MetadataCache}. Use {@link #borrow(int)}.
+     */
     public IFormatReader getReader() {
         return reader;
     }
 
+    /**
+     * Limit the number of additional readers opened by this and every other
+     * parser sharing the permits, e.g. to the number of threads. The first
+     * reader of each input needs no permit so that every input progresses.
+     * Must be called before borrowing.
+     */
+    public void setReaderPermits(Semaphore permits) {
+        synchronized (idle) {
+            this.permits = permits;
+        }
+    }
+
+    /**
+     * Return an idle reader set to the given series, opening a new one if
+     * all readers are in use and a permit is available, otherwise waiting
+     * for one to be released. Must be passed to {@link #release(IFormatReader)}.
+     */
+    public IFormatReader borrow(int series) throws IOException, FormatException {
+        IFormatReader borrowed;
+        boolean permit = false;
+        synchronized (idle) {
+            while ((borrowed = idle.poll()) == null) {
+                if (opened == 0 || permits == null) {
+                    break;
+                }
+                if (permits.tryAcquire()) {
+                    permit = true;
+                    permitted++;
+                    break;
+                }
+                try {
+                    idle.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("waiting for a reader of " + input);
+                }
+            }
+            if (borrowed == null) {
+                opened++;
+            }
+        }
+        if (borrowed == null) {
+            try {
+                borrowed = unopened.poll();
+                if (borrowed == null) {
+                    borrowed = create();
+                }
+                open(borrowed);
+            } catch (IOException | FormatException | RuntimeException e) {
+                synchronized (idle) {
+                    opened--;
+                    if (permit) {
+                        permitted--;
+                        permits.release();
+                    }
+                    idle.notify();
+                }
+                throw e;
+            }
+        }
+        borrowed.setSeries(series);
+        return borrowed;
+    }
+
+    private IFormatReader create() throws IOException, FormatException {
+        if (factory == null) {
+            throw new FormatException("no additional readers available for " + input);
+        }
+        try {
+            return factory.call();
+        } catch (IOException | FormatException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new FormatException("Error creating reader", e);
+        }
+    }
+
+    /**
+     * Initialize a reader for reading pixels only.
+     */
+    private void open(IFormatReader r) throws IOException, FormatException {
+        configure(r);
+        readers.add(r);
+        Events.ReaderInit event = new Events.ReaderInit();
+        event.begin();
+        long start = trace.start();
+        r.setId(input);
+        trace.end(Trace.Phase.setId, Trace.NO_FOV, input, start);
+        event.input = input;
+        event.seriesCount = seriesCount;
+        event.commit();
+    }
+
+    public void release(IFormatReader borrowed) {
+        synchronized (idle) {
+            idle.add(borrowed);
+            idle.notify();
+        }
+    }
+
+    /**
+     * Register an additional user which must call {@link #close()}.
+     */
+    public void retain() {
+        users.incrementAndGet();
+    }
+
+    /**
+     * Close all readers once the last user is finished with them.
+     */
     public void close() throws IOException {
-        reader.close();
+        if (users.decrementAndGet() > 0) {
+            return;
+        }
+        synchronized (idle) {
+            if (permits != null) {
+                permits.release(permitted);
+            }
+            permitted = 0;
+        }
+        IOException first = null;
+        for (IFormatReader r : readers) {
+            try {
+                r.close();
+            } catch (IOException e) {
+                if (first == null) {
+                    first = e;
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
     }
 }
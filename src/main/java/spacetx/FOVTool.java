@@ -7,8 +7,8 @@ import loci.formats.in.MetadataOptions;
 import loci.formats.ome.OMEXMLMetadata;
 import loci.formats.out.OMETiffWriter;
 import loci.formats.tiff.IFD;
-import loci.formats.tools.ImageConverter;
 import loci.formats.tools.ImageInfo;
+import ome.xml.model.enums.PixelType;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -18,10 +18,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
 import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Main entry point for SpaceTx FOV generation.
@@ -54,8 +55,29 @@ public class FOVTool {
     @Option(name="-f", usage="field of view", metaVar="FOV")
     private int fov = 0;
 
-    @Option(name="-j", usage="concurrent threads", metaVar="THREADS")
-    private int threads = 1;
+    @Option(name="-j", usage="concurrent threads or 'auto'", metaVar="THREADS")
+    private String jobs = "1";
+
+    /**
+     * Order in which inputs and the FOVs within each input are converted.
+     * See {@link Schedule}.
+     */
+    @Option(name="--schedule", usage="order of FOVs ('given', 'largest')", metaVar="SCHEDULE")
+    private Schedule schedule = Schedule.given;
+
+    /**
+     * Treat each INPUT as a directory which is still being written to, e.g.
+     * by a microscope, and convert every file matching this glob as soon as
+     * it is complete, until the acquisition ends. See {@link Follower}.
+     */
+    @Option(name="--follow", usage="convert files matching this glob in the INPUT directories as they are acquired", metaVar="GLOB")
+    private String follow = null;
+
+    @Option(name="--follow-settle", usage="seconds a file must be unchanged before it is converted (default: 30)", metaVar="SECONDS")
+    private int followSettle = 30;
+
+    @Option(name="--follow-idle", usage="seconds without changes after which acquisition has ended (default: 600)", metaVar="SECONDS")
+    private int followIdle = 600;
 
     //
     // PRIMARY OUTPUT ARGUMENTS
@@ -74,6 +96,28 @@ public class FOVTool {
     @Option(name="--info", usage="print information about the fileset and exit")
     private boolean info = false;
 
+    /**
+     * Parses all inputs, calibrates read and write throughput and prints
+     * the expected cost of the conversion along with recommended settings.
+     */
+    @Option(name="--plan", usage="print the cost of the conversion and recommended settings and exit")
+    private boolean plan = false;
+
+    /**
+     * Location of a Chrome trace-event file recording the start and end
+     * of each conversion phase per FOV and thread. Load into chrome://tracing
+     * or https://ui.perfetto.dev to look for gaps and contention.
+     */
+    @Option(name="--trace", usage="write a timeline of all phases to this file", metaVar="TRACE")
+    private File traceFile = null;
+
+    /**
+     * Port on localhost at which Prometheus metrics of the running
+     * conversion are served under /metrics.
+     */
+    @Option(name="--metrics", usage="serve Prometheus metrics on this local port", metaVar="PORT")
+    private Integer metricsPort = null;
+
     //
     // ADVANCED ARGUMENTS
     //
@@ -81,9 +125,11 @@ public class FOVTool {
     /**
      * Naming strategies for generating the names of files on disk.
      *
-     * Currently only "standard" is supported.
+     * "standard" places all files in the output directory while "hierarchical"
+     * shards the OME-TIFFs into per-FOV and per-round sub-directories and
+     * "multipage" writes a single OME-TIFF per FOV.
      */
-    @Option(name="-n", usage="naming strategy ('standard')", metaVar="NAMING")
+    @Option(name="-n", usage="naming strategy ('standard', 'hierarchical', 'multipage')", metaVar="NAMING")
     private Naming naming = Naming.standard;
 
     /**
@@ -93,6 +139,107 @@ public class FOVTool {
     @Option(name="--no-tiffs", usage="skip generation of OME-TIFFs")
     private boolean noTiffs = false;
 
+    /**
+     * Whether to write the OME-TIFFs directly via positional FileChannel
+     * writes, streaming each plane in strips, rather than via the Bio-Formats writer. Output is always uncompressed.
+     */
+    @Option(name="--direct", usage="stream planes to disk in strips")
+    private boolean direct = false;
+
+    /**
+     * Bounds the memory held per plane task. Planes larger than this are
+     * read and written in strips or tiles of this size. By default only
+     * planes too large for a single buffer (2GB) are streamed, in 8MB strips.
+     */
+    @Option(name="--strip-size", usage="stream planes larger than this many MB in strips", metaVar="MB")
+    private Integer stripSize = null;
+
+    /**
+     * Whether to compute the max and mean projection over Z of each round
+     * and channel as well as statistics of every plane while converting.
+     */
+    @Option(name="--projections", usage="also write Z projections and plane statistics")
+    private boolean projections = false;
+
+    /**
+     * Whether to replace planes whose pixels are identical to an earlier
+     * plane of the same FOV by hard links to the earlier file.
+     */
+    @Option(name="--dedup", usage="link planes identical to an earlier plane")
+    private boolean dedup = false;
+
+    /**
+     * Region of each plane to convert. Only this region is read from the input.
+     */
+    @Option(name="--crop", usage="convert only this region of each plane", metaVar="X,Y,W,H")
+    private String crop = null;
+
+    /**
+     * Z indices to convert, e.g. "0-4,8". All by default.
+     */
+    @Option(name="--z-range", usage="convert only these Z indices", metaVar="INDICES")
+    private String zRange = null;
+
+    /**
+     * Channel indices to convert. All by default.
+     */
+    @Option(name="--c-range", usage="convert only these channels", metaVar="INDICES")
+    private String cRange = null;
+
+    /**
+     * Timepoint (round) indices to convert. All by default.
+     */
+    @Option(name="--t-range", usage="convert only these timepoints", metaVar="INDICES")
+    private String tRange = null;
+
+    /**
+     * Number of pixels along each axis combined into one while converting.
+     */
+    @Option(name="--bin", usage="bin planes by this factor", metaVar="FACTOR")
+    private int binFactor = 1;
+
+    /**
+     * How binned pixels are combined: 'sum', 'mean' (the default) or 'max'.
+     */
+    @Option(name="--bin-mode", usage="combine binned pixels by 'sum', 'mean' or 'max'", metaVar="MODE")
+    private String binMode = null;
+
+    /**
+     * Pixel type written, e.g. 'uint8'. Values outside its range are clamped
+     * unless rescaled. By default that of the input.
+     */
+    @Option(name="--pixel-type", usage="convert pixels to this type, e.g. 'uint8'", metaVar="TYPE")
+    private String pixelType = null;
+
+    /**
+     * Input range mapped to the full range of the output pixel type, either
+     * fixed as "MIN,MAX" or per channel between two percentiles as "1%,99.5%".
+     */
+    @Option(name="--rescale", usage="rescale intensities from 'MIN,MAX' or 'LOW%,HIGH%' of each channel", metaVar="RANGE")
+    private String rescale = null;
+
+    /**
+     * Whether to export the stage positions of every plane of every FOV
+     * into a single csv for downstream stitching.
+     */
+    @Option(name="--positions", usage="export all stage positions to a single csv")
+    private boolean positions = false;
+
+    /**
+     * Directory in which to keep the parsed metadata of each input so that
+     * repeated runs, e.g. with --no-tiffs, can skip parsing the raw files.
+     */
+    @Option(name="--cache", usage="cache parsed metadata in this directory", metaVar="CACHE")
+    private File cacheDir = null;
+
+    /**
+     * Directory in which to keep the converted pixels of every plane so that
+     * repeated runs over the same input with the same pixel options, e.g.
+     * with a different -f or -n, need not read and convert them again.
+     */
+    @Option(name="--tile-cache", usage="cache converted planes in this directory", metaVar="CACHE")
+    private File tileCacheDir = null;
+
     /**
      * Options to pass to Bio-Formats.
      * See https://docs.openmicroscopy.org/latest/bio-formats/formats/options.html?highlight=options
@@ -117,6 +264,13 @@ public class FOVTool {
     @Option(name="-s", usage="adv: series offset of image", metaVar="SERIES")
     private int series = -1;
 
+    /**
+     * Converts every series of a multi-series (non-screening) input into a
+     * separate field-of-view rather than requiring one to be chosen via -s.
+     */
+    @Option(name="--all-series", usage="convert each series into a separate FOV")
+    private boolean allSeries = false;
+
     /**
      *
      */
@@ -136,20 +290,22 @@ public class FOVTool {
     // STATISTICS
     //
 
+    // Updated by every thread writing planes, so only summed when printed
+
     /**
      * Number of calls to write TIFFs
      */
-    int calls = 0;
+    final LongAdder calls = new LongAdder();
 
     /**
      * Number of bytes written to TIFFs
      */
-    long bytes = 0;
+    final LongAdder bytes = new LongAdder();
 
     /**
      * Total time spent writing TIFFs
      */
-    long elapsed = 0;
+    final LongAdder elapsed = new LongAdder();
 
     //
     // GLOBAL PARALLEL STATE
@@ -157,14 +313,78 @@ public class FOVTool {
 
     ExperimentWriter writer;
 
-    ExecutorService executor;
+    Trace trace = Trace.NONE;
 
-    ExecutorCompletionService<Integer> ecs;
+    BufferPool pool;
 
-    Queue<Future<Integer>> futures;
+    /**
+     * Bytes of planes read ahead of their writers across all FOVs.
+     */
+    ReadBudget budget = ReadBudget.UNLIMITED;
+
+    /**
+     * Readers which may be opened beyond the first of each input.
+     */
+    Semaphore readerPermits;
+
+    Metrics metrics = Metrics.NONE;
+
+    Executor executor;
+
+    volatile Tasks tasks;
+
+    volatile boolean cancelled = false;
 
     IFormatReader reader;
 
+    /**
+     * Number of threads, chosen by the {@link Planner} for '-j auto'.
+     */
+    int threads = 1;
+
+    /**
+     * Number of plane buffers in the pool, which also bounds the planes
+     * each FOV reads ahead of its writer.
+     */
+    int depth;
+
+    /**
+     * Set once converting, see {@link #start(Executor)}.
+     */
+    final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Whether {@link #configure()} has succeeded, e.g. in {@link Builder#build()}.
+     */
+    private boolean configured = false;
+
+    /**
+     * Receives the events of every FOV.
+     */
+    Progress progress = Progress.NONE;
+
+    /**
+     * Whether to print a line per written plane, as the command line does.
+     */
+    boolean verbose = true;
+
+    MetadataCache cache;
+
+    TileCache tileCache;
+
+    Selection selection = Selection.ALL;
+
+    Binning binning = Binning.NONE;
+
+    Rescaling rescaling = Rescaling.NONE;
+
+    /**
+     * For --all-series, the index of the first FOV of each input, completed
+     * once all previous inputs have been scheduled. The last entry is one past
+     * the final FOV.
+     */
+    List<CompletableFuture<Integer>> firstFOVs;
+
     public static void main(String[] args) throws Exception {
         System.exit(new FOVTool().doMain(args));
     }
@@ -172,21 +392,12 @@ public class FOVTool {
     public int doMain(String[] args) throws IOException, FormatException {
         CmdLineParser parser = new CmdLineParser(this);
         parser.getProperties().withUsageWidth(80);
+        ExecutorService threadPool = null;
 
         try {
             parser.parseArgument(args);
-            executor = Executors.newFixedThreadPool(threads);
-            for (String input : inputs) {
-                if (!new File(input).exists()) {
-                    Errors.doesNotExist.raise(input);
-                }
-            }
-
             LogbackTools.setRootLevel(LOGLEVEL);
-            reader = createReader(format);
-            if (format != null && reader == null) {
-                Errors.unknownFormat.raise(format);
-            }
+            checkInputs();
 
             if (info) {
                 try {
@@ -231,43 +442,67 @@ public class FOVTool {
 
             }
 
-            if (out == null) {
-                Errors.needAction.raise();
-            } else if (out.exists()) {
-                Errors.outputExists.raise(out);
-            } else {
-                out.mkdirs();
-            }
+            configure();
 
-            if (fov < 0) {
-                Errors.fovIsPositive.raise(fov);
+            if (plan) {
+                List<FOVParser> parsers = parseAll();
+                try {
+                    plan(parsers, out == null ? new File(".") : out).report(System.out);
+                } finally {
+                    for (FOVParser fovParser : parsers) {
+                        fovParser.close();
+                    }
+                }
+                return 0;
             }
 
-            int loop = 0;
-            int rv = 0;
-            writer = new ExperimentWriter(naming, out);
-            ecs = new ExecutorCompletionService<>(executor);
-            futures = new ConcurrentLinkedQueue<>();
-            for (String input : inputs) {
-                final int inner = loop++;
-                futures.add(ecs.submit(() -> {
-                            FOVParser fovParser = new FOVParser(createReader(format), input);
-                            try {
-                                return convert(fovParser, writer, inner);
-                            } finally {
-                                try {
-                                    writer.write();
-                                } finally {
-                                    fovParser.close();
-                                }
-                            }
-                        }
-                ));
+            createOutput();
+            startMonitoring();
+            List<FOVParser> parsed = null;
+            int depth;
+            if ("auto".equals(jobs)) {
+                // Parse up-front so that the planner can see every FOV.
+                // The parsers are then handed on to the conversion.
+                parsed = parseAll();
+                Planner planner;
+                try {
+                    planner = plan(parsed, out);
+                } catch (IOException | FormatException | Errors.UsageException e) {
+                    for (FOVParser fovParser : parsed) {
+                        fovParser.close();
+                    }
+                    throw e;
+                }
+                threads = planner.recommendThreads();
+                depth = planner.recommendDepth(threads);
+                LOGGER.info("using {} threads and a pool depth of {}", threads, depth);
+                long heap = planner.recommendHeap(threads);
+                if (Runtime.getRuntime().maxMemory() < heap) {
+                    LOGGER.warn("recommended heap is -Xmx{}m", heap / (1024 * 1024));
+                }
+            } else {
+                try {
+                    threads = Integer.parseInt(jobs);
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    Errors.badThreads.raise(jobs);
+                }
+                depth = 2 * threads;
+            }
+            if (parsed == null && schedule == Schedule.largest) {
+                // The size of every input is needed to order them
+                parsed = parseAll();
             }
-            for (Future<Integer> future : futures) {
-                rv += future.get();
+            threadPool = Executors.newWorkStealingPool(threads);
+            try {
+                return run(threadPool, parsed, depth).get();
+            } catch (ExecutionException e) {
+                // Everything else has been cancelled
+                tasks.report(System.err);
+                throw e;
             }
-            return rv;
 
         } catch (CmdLineException | InterruptedException | ExecutionException hide) {
             Exception copy = hide;
@@ -295,20 +530,383 @@ public class FOVTool {
             System.err.println(line);
             return rc;
         } finally {
-            if (executor != null) {
-                executor.shutdownNow();
+            if (threadPool != null) {
+                threadPool.shutdownNow();
+            }
+            close();
+        }
+
+    }
+
+    /**
+     * Convert asynchronously as the command line does, but on the given
+     * executor rather than on a pool of -j threads. Configure the instance
+     * via {@link #builder()}. Each instance converts once; any number of
+     * instances may share an executor.
+     *
+     * @param executor runs every task of the conversion and is not shut down.
+     *                 Inputs are only parsed up-front for {@link Schedule#largest}.
+     * @return completed with 0 once every FOV and the experiment json have
+     *         been written, or exceptionally with the first failure, e.g. an
+     *         {@link Errors.UsageException} for invalid options, once all
+     *         other FOVs have been cancelled and their files removed
+     */
+    public CompletableFuture<Integer> start(Executor executor) {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("already started");
+        }
+        CompletableFuture<Integer> rv;
+        try {
+            checkInputs();
+            if (!configured) {
+                configure(); // Already done by the builder
+            }
+            createOutput();
+            startMonitoring();
+            threads = executor instanceof ForkJoinPool
+                    ? ((ForkJoinPool) executor).getParallelism()
+                    : Runtime.getRuntime().availableProcessors();
+            List<FOVParser> parsed = schedule == Schedule.largest ? parseAll() : null;
+            rv = run(executor, parsed, 2 * threads);
+        } catch (Throwable t) {
+            rv = new CompletableFuture<>();
+            rv.completeExceptionally(t instanceof ExecutionException ? t.getCause() : t);
+        }
+        return rv.whenComplete((done, t) -> close());
+    }
+
+    /**
+     * Stop a conversion started via {@link #start(Executor)}. Its future then
+     * completes exceptionally with a {@link CancellationException} once every
+     * FOV has been cancelled and its files removed.
+     */
+    public void cancel() {
+        cancelled = true;
+        Tasks running = tasks;
+        if (running != null) {
+            running.fail(new CancellationException("conversion cancelled"));
+        }
+    }
+
+    /**
+     * @return the local port on which the metrics of a conversion started via
+     *         {@link #start(Executor)} are served until it ends, e.g. the one
+     *         chosen for --metrics 0, or -1 if none are served
+     */
+    public int getMetricsPort() {
+        return metrics.getPort();
+    }
+
+    /**
+     * Checks that every input exists and that the reader can be created.
+     */
+    private void checkInputs() throws Errors.UsageException {
+        if (inputs == null || inputs.isEmpty()) {
+            Errors.noInput.raise();
+        }
+        for (String input : inputs) {
+            if (!new File(input).exists()) {
+                Errors.doesNotExist.raise(input);
+            }
+        }
+        reader = createReader(format);
+        if (format != null && reader == null) {
+            Errors.unknownFormat.raise(format);
+        }
+    }
+
+    /**
+     * Parses and checks the options which affect the conversion itself.
+     */
+    private void configure() throws Errors.UsageException {
+        selection = Selection.parse(crop, zRange, cRange, tRange);
+        binning = Binning.parse(binFactor, binMode);
+        rescaling = Rescaling.parse(pixelType, rescale);
+        if (stripSize != null && (stripSize < 1 || stripSize > 2047)) {
+            Errors.badOption.raise("--strip-size " + stripSize);
+        }
+        if (follow != null) {
+            if (plan || "auto".equals(jobs) || schedule == Schedule.largest) {
+                Errors.badOption.raise("--follow cannot be combined with --plan, -j auto or --schedule largest");
+            }
+            if (followSettle < 0 || followIdle < 0) {
+                Errors.badOption.raise("--follow-settle and --follow-idle must not be negative");
+            }
+            for (String input : inputs) {
+                if (!new File(input).isDirectory()) {
+                    Errors.badOption.raise("--follow requires directories: " + input);
+                }
+            }
+        }
+        if (fov < 0) {
+            Errors.fovIsPositive.raise(fov);
+        }
+
+        String settings = String.format("format=%s options=%s flags=%s", format, options, flags);
+        cache = cacheDir == null ? null : new MetadataCache(cacheDir, settings);
+        tileCache = tileCacheDir == null ? null : new TileCache(tileCacheDir, settings);
+        configured = true;
+    }
+
+    private void createOutput() throws Errors.UsageException {
+        if (out == null) {
+            Errors.needAction.raise();
+        } else if (out.exists()) {
+            Errors.outputExists.raise(out);
+        } else {
+            out.mkdirs();
+        }
+    }
+
+    private void startMonitoring() throws Errors.UsageException {
+        trace = new Trace(traceFile);
+        if (metricsPort != null) {
+            metrics = new Metrics();
+            try {
+                metrics.serve(metricsPort);
+            } catch (IOException | IllegalArgumentException e) {
+                Errors.badOption.raise("--metrics " + metricsPort + ": " + e.getMessage());
+            }
+            trace.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * Schedule every input on the executor.
+     *
+     * @param parsed all inputs if parsed up-front, otherwise null
+     * @param depth number of plane buffers in the pool
+     * @return completed once all tasks, including those added meanwhile, have completed
+     */
+    private CompletableFuture<Integer> run(Executor executor, List<FOVParser> parsed, int depth)
+            throws IOException {
+        this.executor = executor;
+        metrics.setExecutor(executor);
+        writer = new ExperimentWriter(naming, out, trace);
+        writer.setExportPositions(positions);
+        pool = new BufferPool(depth);
+        this.depth = depth;
+        // Without a bound, concurrent FOVs could read ahead more than fits into the heap
+        budget = new ReadBudget(Runtime.getRuntime().maxMemory() / 2);
+        readerPermits = new Semaphore(Math.max(1, threads));
+        tasks = new Tasks();
+        if (cancelled) {
+            tasks.fail(new CancellationException("conversion cancelled"));
+        }
+        // Grows while following an acquisition
+        firstFOVs = Collections.synchronizedList(new ArrayList<>());
+        firstFOVs.add(new CompletableFuture<>());
+        firstFOVs.get(0).complete(fov);
+        if (follow == null) {
+            for (int i = 0; i < inputs.size(); i++) {
+                firstFOVs.add(new CompletableFuture<>());
+            }
+            numberFOVs(parsed);
+            for (int index : inputOrder(parsed)) {
+                submit(index, inputs.get(index), parsed == null ? null : parsed.get(index));
+            }
+        } else {
+            final int[] found = {0};
+            Follower follower = new Follower(inputs, follow, followSettle * 1000L, followIdle * 1000L,
+                    input -> {
+                        firstFOVs.add(new CompletableFuture<>());
+                        submit(found[0]++, input, null);
+                    });
+            tasks.add("follow " + String.join(", ", inputs), follower.start(), null);
+        }
+        CompletableFuture<Integer> rv = new CompletableFuture<>();
+        tasks.seal().whenComplete((sum, t) -> {
+            try {
+                if (t != null) {
+                    rv.completeExceptionally(t);
+                    return;
+                }
+                if (follow != null) {
+                    // Each FOV has updated the experiment as it completed, so this
+                    // only matters if the acquisition produced nothing to convert
+                    writer.write();
+                }
+                pool.close();
+                rv.complete(sum);
+            } catch (Throwable e) {
+                rv.completeExceptionally(e);
             }
+        });
+        return rv;
+    }
+
+    /**
+     * Release the reader and monitoring once the conversion has ended.
+     */
+    private void close() {
+        try {
             if (reader != null) {
                 reader.close();
             }
+        } catch (IOException e) {
+            LOGGER.warn("failed to close reader", e);
+        }
+        metrics.close();
+        try {
+            trace.write();
+        } catch (IOException e) {
+            LOGGER.warn("failed to write trace to {}", traceFile, e);
+        }
+    }
+
+    /**
+     * Convert the input in a new task.
+     *
+     * @param index of the input, which determines the FOV numbers
+     * @param given parsed input if parsed up-front, otherwise null
+     */
+    private void submit(int index, String input, FOVParser given) {
+        tasks.submit(input, executor, () -> {
+                    FOVParser fovParser = given;
+                    try {
+                        if (tasks.isCancelled()) {
+                            return 0;
+                        }
+                        if (fovParser == null) {
+                            fovParser = new FOVParser(createReader(format), input,
+                                    () -> createReader(format), trace, cache);
+                        }
+                        return convert(fovParser, writer, index);
+                    } finally {
+                        if (fovParser != null) {
+                            fovParser.close();
+                        }
+                        // Unblock later inputs if this one failed
+                        firstFOVs.get(index + 1).completeExceptionally(
+                                new IllegalStateException("failed to convert " + input));
+                    }
+                }
+        );
+    }
+
+    /**
+     * If all inputs have been parsed up-front, number the FOVs of every input
+     * for --all-series so that inputs need not wait for the previous one
+     * whatever order they are submitted in. Numbering stops at the first
+     * input which cannot be converted, as it would otherwise.
+     */
+    private void numberFOVs(List<FOVParser> parsed) {
+        if (parsed == null || !allSeries) {
+            return;
+        }
+        int first = fov;
+        for (int i = 0; i < parsed.size(); i++) {
+            try {
+                first += chooseSeries(parsed.get(i)).length;
+            } catch (Errors.UsageException e) {
+                return; // raised again when the input is converted
+            }
+            firstFOVs.get(i + 1).complete(first);
+        }
+    }
+
+    /**
+     * @param parsed all inputs if parsed up-front, otherwise null
+     * @return indices of the inputs in the order they should be submitted
+     */
+    private List<Integer> inputOrder(List<FOVParser> parsed) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            order.add(i);
+        }
+        if (schedule == Schedule.largest && parsed != null) {
+            long[] sizes = new long[parsed.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                FOVParser fovParser = parsed.get(i);
+                try {
+                    for (int chosen : chooseSeries(fovParser)) {
+                        sizes[i] += Schedule.estimate(fovParser.getMetadata(), chosen);
+                    }
+                } catch (Errors.UsageException e) {
+                    // raised again when the input is converted
+                }
+            }
+            order.sort(Comparator.comparingLong((Integer i) -> sizes[i]).reversed());
         }
+        return order;
+    }
 
+    /**
+     * Parse every input concurrently, e.g. for planning. The caller must
+     * close the returned parsers.
+     *
+     * @throws ExecutionException with the first input which could not be
+     *         parsed as the cause, as if it had failed while converting
+     */
+    private List<FOVParser> parseAll() throws IOException, InterruptedException, ExecutionException {
+        ExecutorService parsing = Executors.newWorkStealingPool(
+                Math.min(inputs.size(), Runtime.getRuntime().availableProcessors()));
+        List<Future<FOVParser>> pending = new ArrayList<>();
+        List<FOVParser> parsers = new ArrayList<>();
+        ExecutionException failure = null;
+        try {
+            for (String input : inputs) {
+                pending.add(parsing.submit(() -> new FOVParser(createReader(format), input,
+                        () -> createReader(format), trace, cache)));
+            }
+            // Wait for every input, even after a failure, so that none is left open
+            for (Future<FOVParser> future : pending) {
+                try {
+                    parsers.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        } finally {
+            parsing.shutdownNow();
+            if (failure != null || parsers.size() < pending.size()) {
+                for (FOVParser fovParser : parsers) {
+                    fovParser.close();
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return parsers;
+    }
+
+    /**
+     * Account for every FOV that would be converted and calibrate using the
+     * first one.
+     *
+     * @param target output directory, which need not exist yet
+     */
+    private Planner plan(List<FOVParser> parsers, File target)
+            throws IOException, FormatException, Errors.UsageException {
+        Planner planner = new Planner(naming, direct);
+        if (stripSize != null) {
+            planner.setStripBytes(stripSize * 1024 * 1024);
+        }
+        FOVParser first = null;
+        int firstSeries = 0;
+        for (FOVParser fovParser : parsers) {
+            for (int chosen : chooseSeries(fovParser)) {
+                planner.add(fovParser, chosen);
+                if (first == null) {
+                    first = fovParser;
+                    firstSeries = chosen;
+                }
+            }
+        }
+        if (first != null && !noTiffs) {
+            planner.calibrate(first, firstSeries, target);
+        }
+        return planner;
     }
 
     /**
      * Reads an input file into a {@link ImageReader} in order to have all necessary metadata,
-     * then uses {@link ImageConverter} to produce the TIFF stacks, and finally uses {@link FOVWriter}
-     * to produce the necessary JSON.
+     * then registers a {@link FOVConverter} for each field-of-view which splits the production
+     * of the TIFF stacks into per-plane tasks, and finally uses {@link FOVWriter} to produce
+     * the necessary JSON.
      *
      * @return non-zero return code if anything went wrnog
      * @throws IOException
@@ -317,11 +915,42 @@ public class FOVTool {
      */
     public int convert(FOVParser parser, ExperimentWriter writer, int loop)
             throws IOException, FormatException, Errors.UsageException {
-        int rv = 0;
+        int[] chosen = chooseSeries(parser);
+        parser.setReaderPermits(readerPermits);
+        int first;
+        if (parser.getPlateCount() > 0) {
+            // Every field of every well of every plate becomes a FOV
+            first = fov;
+        } else if (allSeries) {
+            // FOVs are numbered in input order, so wait for previous inputs to be parsed
+            try {
+                first = firstFOVs.get(loop).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new FormatException("previous input was not converted", e);
+            }
+            firstFOVs.get(loop + 1).complete(first + chosen.length);
+        } else {
+            first = loop + fov;
+        }
+        for (int i : schedule.order(parser.getMetadata(), chosen)) {
+            if (tasks.isCancelled()) {
+                break; // e.g. another input failed while this one was being parsed
+            }
+            convertOne(parser, chosen[i], writer, first + i);
+        }
+        return 0;
+    }
+
+    /**
+     * Checks which series of the input can be converted.
+     *
+     * @return the series to convert, one per FOV
+     * @throws Errors.UsageException if the input is not supported
+     */
+    int[] chooseSeries(FOVParser parser) throws Errors.UsageException {
         String input = parser.getInput();
         int plateCount = parser.getPlateCount();
         int seriesCount = parser.getSeriesCount();
-        IFormatReader reader = parser.getReader();
         OMEXMLMetadata meta = parser.getMetadata();
 
         if (plateCount > 0) {
@@ -333,47 +962,18 @@ public class FOVTool {
             }
 
             // We assume that a HCS dataset it more structured, having the same
-            // coordinate system for all the wells, therefore we can remove some
-            // of the restrictions around choosing FOV.
-            if (plateCount > 1) {
-                // however, to allow fov to choose the _well_, we abort if there
-                // are more than one plate.
-                Errors.tooManyPlates.raise(plateCount);
-            }
-
-            int wellCount = meta.getWellCount(0);
-            if (wellCount != 1) {
-                Errors.tooManyWells.raise(wellCount);
-            }
-
-            // This counting loop will need to be updated when/if multiple SPWs are supported
-            for (int i = 0; i < seriesCount; i++) {
-                if (threads <= 1) {
-                    reader.setSeries(i);
-                    rv += convertOne(reader, meta, input, writer, i + fov);
-                    if (rv != 0) {
-                        return rv;
-                    }
-                } else {
-                    // Only parallelizing in the SPW case if required due to memory constraints.
-                    final int inner = i;
-                    futures.add(ecs.submit(() -> {
-                                FOVParser fovParser = new FOVParser(createReader(format), input);
-                                fovParser.getReader().setSeries(inner);
-                                try {
-                                    return convertOne(fovParser.getReader(), meta, input, writer,inner+fov);
-                                } finally {
-                                    try {
-                                        writer.write();
-                                    } finally {
-                                        fovParser.close();
-                                    }
-                                }
-                            }
-                    ));
+            // coordinate system for all the wells, therefore all fields of all
+            // wells and plates are converted, ordered by plate, well and field.
+            return parser.getScreenLayout().getSeries();
+        } else {
+            if (allSeries) {
+                int[] all = new int[seriesCount];
+                for (int i = 0; i < seriesCount; i++) {
+                    all[i] = i;
                 }
+                return all;
             }
-        } else {
+            int chosen = 0;
             if (seriesCount > 1) {
                 if (series < 0) {
                     // User didn't choose a series
@@ -382,58 +982,39 @@ public class FOVTool {
                     }
                     Errors.multipleImages.raise(input, seriesCount);
                 } else {
-                    reader.setSeries(series);
-                }
-            }
-            rv += convertOne(reader, meta, input, writer, loop+fov);
-        }
-        return rv;
-    }
-
-    private int convertOne(IFormatReader reader, OMEXMLMetadata meta, String input, ExperimentWriter eWriter, int fov)
-            throws FormatException, IOException {
-        String companion = String.format("%s/%s", out, naming.getCompanionFilename(fov));
-        String tiffs = String.format("%s/%s", out, naming.getTiffPattern(fov));
-        ImageConverter converter = createConverter();
-
-        List<String> cmd = new ArrayList<>();
-        addOptions(cmd);
-        cmd.add("-series");
-        cmd.add(String.valueOf(reader.getSeries()));
-        cmd.add("-option");
-        cmd.add("ometiff.companion");
-        cmd.add(companion);
-        cmd.add("-validate");
-        cmd.add(input);
-        cmd.add(tiffs);
-        if (!noTiffs) {
-            try (FormatWriter writer = imageWriter()) {
-                if (!converter.testConvert(writer, cmd.stream().toArray(String[]::new))) {
-                    System.out.println("Conversion failed!");
-                    return 1;
+                    chosen = series;
                 }
             }
+            return new int[]{chosen};
         }
-
-
-        // Now write out the spacetx json
-        FOVWriter writer = new FOVWriter(reader, meta, naming, fov, out);
-        writer.write();
-        eWriter.addFOV(fov);
-        return 0;
     }
 
-    /*
-     * Deals with the fact that the ImageConverter constructor is package-private.
+    /**
+     * Schedules the planes of a single series. The FOV is added to
+     * {@link #tasks} before the task for this input completes so that
+     * the conversion will also wait on it.
      */
-    private static ImageConverter createConverter() {
-        // TODO: this should be pushed upstream
-        try {
-            Constructor<ImageConverter> c = ImageConverter.class.getDeclaredConstructor();
-            c.setAccessible(true);
-            return c.newInstance();
-        } catch (Exception e) {
-            throw new RuntimeException("Something's weird in Java land", e);
+    private void convertOne(FOVParser parser, int series, ExperimentWriter eWriter, int fov)
+            throws FormatException, IOException, Errors.UsageException {
+        FOVConverter converter = new FOVConverter(parser, series, fov, naming, out, eWriter, trace, pool,
+                selection);
+        converter.setProjections(projections);
+        converter.setDedup(dedup);
+        converter.setBinning(binning);
+        converter.setRescaling(rescaling);
+        converter.setTileCache(tileCache);
+        converter.setMetrics(metrics);
+        converter.setReadAhead(depth);
+        converter.setReadBudget(budget);
+        converter.setProgress(progress);
+        if (stripSize != null) {
+            converter.setStripBytes(stripSize * 1024 * 1024);
+        }
+        String name = String.format("fov %03d (%s, series %d)", fov, parser.getInput(), series);
+        if (direct && !noTiffs) {
+            tasks.add(name, converter.startDirect(executor), converter::cancel);
+        } else {
+            tasks.add(name, converter.start(executor, noTiffs ? null : imageWriter()), converter::cancel);
         }
     }
 
@@ -446,7 +1027,7 @@ public class FOVTool {
      * @param format possibly null
      * @return possibly null {@link IFormatReader}
      */
-    private IFormatReader createReader(String format) throws Errors.UsageException {
+    IFormatReader createReader(String format) throws Errors.UsageException {
 
         IFormatReader reader = null;
         if (format == null) {
@@ -473,28 +1054,30 @@ public class FOVTool {
      * Create a {@link FormatWriter} instance which will output status updates
      * as TIFFs are saved.
      *
-     * @return instance to be used by the {@link ImageConverter}. Never null.
+     * @return instance to be used by a {@link FOVConverter}. Never null.
      */
-    private FormatWriter imageWriter() {
+    FormatWriter imageWriter() {
         final FOVTool tool = this;
         return new OMETiffWriter() {
 
             public void saveBytes(int no, byte[] buf, IFD ifd, int x, int y, int w, int h)
                     throws IOException, FormatException {
-                tool.calls++;
-                tool.bytes += buf.length;
+                tool.calls.increment();
+                tool.bytes.add(buf.length);
                 long start = System.currentTimeMillis();
                 try {
                     super.saveBytes(no, buf, ifd, x, y, w, h);
                 } finally {
                     long stop = System.currentTimeMillis();
                     long elapsed = stop - start;
-                    tool.elapsed += elapsed;
-                    System.out.println(String.format(
-                            "[%04d]\t%s\t%s\t%8d bytes\t%4d ms\t    Avg. %5.3f MB/s",
-                            calls, new Date(), currentId.substring(currentId.lastIndexOf(File.separatorChar)+1),
-                            buf.length, elapsed, ((double) tool.bytes)/tool.elapsed/1000
-                    ));
+                    tool.elapsed.add(elapsed);
+                    if (verbose) {
+                        System.out.println(String.format(
+                                "[%04d]\t%s\t%s\t%8d bytes\t%4d ms\t    Avg. %5.3f MB/s",
+                                calls.sum(), new Date(), currentId.substring(currentId.lastIndexOf(File.separatorChar)+1),
+                                buf.length, elapsed, ((double) tool.bytes.sum())/tool.elapsed.sum()/1000
+                        ));
+                    }
                 }
             }
         };
@@ -546,4 +1129,251 @@ public class FOVTool {
             }
         }
     }
+
+    /**
+     * @return a builder for converting from within another application
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Configures a {@link FOVTool} with the same options as the command line,
+     * for use via {@link FOVTool#start(Executor)}. Options are checked by
+     * {@link #build()}, while the inputs and output are only checked when
+     * starting. Unlike the command line, nothing is printed per plane; use
+     * {@link #progress(Progress)} to follow the conversion instead.
+     */
+    public static class Builder {
+
+        private FOVTool tool = new FOVTool();
+
+        private Builder() {
+            tool.verbose = false;
+            tool.inputs = new ArrayList<>();
+        }
+
+        private FOVTool tool() {
+            if (tool == null) {
+                throw new IllegalStateException("already built");
+            }
+            return tool;
+        }
+
+        /**
+         * Main input files, as given on the command line.
+         */
+        public Builder input(String... inputs) {
+            tool().inputs.addAll(Arrays.asList(inputs));
+            return this;
+        }
+
+        /**
+         * Non-extant directory to create and output to (-o).
+         */
+        public Builder output(File out) {
+            tool().out = out;
+            return this;
+        }
+
+        /**
+         * First FOV of the output (-f).
+         */
+        public Builder fov(int fov) {
+            tool().fov = fov;
+            return this;
+        }
+
+        public Builder schedule(Schedule schedule) {
+            tool().schedule = schedule;
+            return this;
+        }
+
+        /**
+         * Convert files matching the glob in the input directories as they
+         * are acquired (--follow, --follow-settle, --follow-idle).
+         */
+        public Builder follow(String glob, int settleSeconds, int idleSeconds) {
+            tool().follow = glob;
+            tool().followSettle = settleSeconds;
+            tool().followIdle = idleSeconds;
+            return this;
+        }
+
+        public Builder trace(File traceFile) {
+            tool().traceFile = traceFile;
+            return this;
+        }
+
+        /**
+         * Serve Prometheus metrics on this local port (--metrics), or on
+         * any free port if 0, see {@link FOVTool#getMetricsPort()}.
+         */
+        public Builder metrics(int port) {
+            tool().metricsPort = port;
+            return this;
+        }
+
+        /**
+         * Receives the events of every FOV.
+         */
+        public Builder progress(Progress progress) {
+            tool().progress = progress;
+            return this;
+        }
+
+        public Builder naming(Naming naming) {
+            tool().naming = naming;
+            return this;
+        }
+
+        public Builder noTiffs(boolean noTiffs) {
+            tool().noTiffs = noTiffs;
+            return this;
+        }
+
+        public Builder direct(boolean direct) {
+            tool().direct = direct;
+            return this;
+        }
+
+        public Builder stripSize(int megabytes) {
+            tool().stripSize = megabytes;
+            return this;
+        }
+
+        public Builder projections(boolean projections) {
+            tool().projections = projections;
+            return this;
+        }
+
+        public Builder dedup(boolean dedup) {
+            tool().dedup = dedup;
+            return this;
+        }
+
+        public Builder crop(int x, int y, int w, int h) {
+            tool().crop = String.format("%d,%d,%d,%d", x, y, w, h);
+            return this;
+        }
+
+        /**
+         * Convert Z indices first to last, inclusive. May be called more
+         * than once to select several ranges.
+         */
+        public Builder zRange(int first, int last) {
+            tool().zRange = range(tool().zRange, first, last);
+            return this;
+        }
+
+        public Builder cRange(int first, int last) {
+            tool().cRange = range(tool().cRange, first, last);
+            return this;
+        }
+
+        public Builder tRange(int first, int last) {
+            tool().tRange = range(tool().tRange, first, last);
+            return this;
+        }
+
+        /**
+         * @return the spec of --z-range etc. extended by the range
+         */
+        private static String range(String spec, int first, int last) {
+            String range = first + "-" + last;
+            return spec == null ? range : spec + "," + range;
+        }
+
+        public Builder bin(int factor, Binning.Mode mode) {
+            tool().binFactor = factor;
+            tool().binMode = mode.name();
+            return this;
+        }
+
+        /**
+         * Pixel type written, any but {@link PixelType#BIT}.
+         */
+        public Builder pixelType(PixelType pixelType) {
+            tool().pixelType = pixelType.getValue();
+            return this;
+        }
+
+        /**
+         * Map the fixed range of input values to the full output range.
+         */
+        public Builder rescale(double min, double max) {
+            tool().rescale = min + "," + max;
+            return this;
+        }
+
+        /**
+         * Map the range between two percentiles of each channel to the full output range.
+         */
+        public Builder rescalePercentiles(double low, double high) {
+            tool().rescale = low + "%," + high + "%";
+            return this;
+        }
+
+        public Builder positions(boolean positions) {
+            tool().positions = positions;
+            return this;
+        }
+
+        /**
+         * Directory in which to keep parsed metadata (--cache).
+         */
+        public Builder cache(File cacheDir) {
+            tool().cacheDir = cacheDir;
+            return this;
+        }
+
+        public Builder tileCache(File tileCacheDir) {
+            tool().tileCacheDir = tileCacheDir;
+            return this;
+        }
+
+        /**
+         * Add a Bio-Formats reader option (--options).
+         */
+        public Builder option(String key, String value) {
+            String option = key + "=" + value;
+            tool().options = tool().options == null ? option : tool().options + ":" + option;
+            return this;
+        }
+
+        /**
+         * Add a Bio-Formats flag (--flags) without hyphens, e.g. "noflat".
+         */
+        public Builder flag(String flag) {
+            tool().flags = tool().flags == null ? flag : tool().flags + ":" + flag;
+            return this;
+        }
+
+        public Builder series(int series) {
+            tool().series = series;
+            return this;
+        }
+
+        public Builder allSeries(boolean allSeries) {
+            tool().allSeries = allSeries;
+            return this;
+        }
+
+        public Builder format(String format) {
+            tool().format = format;
+            return this;
+        }
+
+        /**
+         * @return the configured tool. The builder cannot be used afterwards.
+         * @throws Errors.UsageException if the options are invalid, with the
+         *         code the command line would return
+         */
+        public FOVTool build() throws Errors.UsageException {
+            FOVTool built = tool();
+            built.configure();
+            tool = null;
+            return built;
+        }
+    }
 }
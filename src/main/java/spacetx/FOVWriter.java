@@ -11,46 +11,108 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
-import loci.formats.FormatTools;
 import loci.formats.IFormatReader;
 import loci.formats.ImageReader;
 import loci.formats.ome.OMEXMLMetadata;
-import ome.units.UNITS;
-import ome.units.quantity.Length;
 
 import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Produces the FOV json file for a SpaceTx experiment.
  *
- * Size attributes are taken from the {@link ImageReader} and filename
- * assumptions are made based on values in {@link FOVTool}.
+ * Size attributes are taken from the OME-XML metadata of the series (as
+ * populated from the {@link ImageReader}) and filename assumptions are
+ * made based on values in {@link FOVTool}. No reader is needed, so the
+ * json can be regenerated from cached metadata.
  */
 public class FOVWriter {
 
-    private final IFormatReader reader;
-    private final OMEXMLMetadata meta;
+    /**
+     * Names of the coordinates in the order of {@link PlanePositions#X}, Y, and Z.
+     */
+    private final static String[] COORDINATES = new String[]{"xc", "yc", "zc"};
+
+    private final PlanePositions positions;
     private final int sizeX, sizeY, sizeC, sizeT, sizeZ;
     private final int fov;
     private final Naming naming;
     private final File out;
+    private final Trace trace;
+
+    /**
+     * Null unless projections and statistics were computed.
+     */
+    private Projector projector;
+
+    /**
+     * Null unless the FOV is a field of a screen.
+     */
+    private ScreenLayout layout;
+
+    /**
+     * Series of the FOV within the screen.
+     */
+    private int layoutSeries;
+
+    /**
+     * Files which are links to another file, whose hash is then reused.
+     */
+    private Map<String, String> aliases = Collections.emptyMap();
 
     public FOVWriter(IFormatReader reader, OMEXMLMetadata meta, Naming naming, int fov, File out) {
-        this.reader = reader;
-        this.meta = meta;
+        this(reader, meta, naming, fov, out, Trace.NONE);
+    }
+
+    public FOVWriter(IFormatReader reader, OMEXMLMetadata meta, Naming naming, int fov, File out, Trace trace) {
+        this(meta, new PlanePositions(meta, reader.getSeries()), naming, fov, out, trace);
+    }
+
+    /**
+     * @param positions of the series which is being written, whose image
+     *                  index within the metadata gives the sizes
+     */
+    public FOVWriter(OMEXMLMetadata meta, PlanePositions positions, Naming naming, int fov, File out, Trace trace) {
+        int image = positions.getImage();
+        this.trace = trace;
+        this.positions = positions;
         this.fov = fov;
         this.out = out;
         this.naming = naming;
-        this.sizeX = reader.getSizeX();
-        this.sizeY = reader.getSizeY();
-        this.sizeC = reader.getSizeC(); // TODO: getEffectiveSizeC?
-        this.sizeT = reader.getSizeT();
-        this.sizeZ = reader.getSizeZ();
+        this.sizeX = meta.getPixelsSizeX(image).getValue();
+        this.sizeY = meta.getPixelsSizeY(image).getValue();
+        this.sizeC = meta.getPixelsSizeC(image).getValue(); // TODO: getEffectiveSizeC?
+        this.sizeT = meta.getPixelsSizeT(image).getValue();
+        this.sizeZ = meta.getPixelsSizeZ(image).getValue();
+    }
+
+    public void setProjector(Projector projector) {
+        this.projector = projector;
+    }
+
+    /**
+     * @param layout of the screen this FOV belongs to. May be null.
+     * @param series of the FOV in the screen, i.e. in the input rather
+     *               than in the metadata when only a selection is written
+     */
+    public void setScreenLayout(ScreenLayout layout, int series) {
+        this.layout = layout;
+        this.layoutSeries = series;
+    }
+
+    /**
+     * @param aliases the original file by the name of each linked duplicate
+     */
+    public void setAliases(Map<String, String> aliases) {
+        this.aliases = aliases;
     }
 
     public void write() throws IOException {
+        long started = trace.start();
         ObjectMapper mapper = new ObjectMapper();
         PrettyPrinter printer = naming.createPrinter();
         ObjectWriter writer = mapper.writer(printer);
@@ -75,6 +137,12 @@ public class FOVWriter {
         // "extras"
         ObjectNode extras = mapper.createObjectNode();
         extras.put("OME", naming.getCompanionFilename(fov));
+        if (projector != null) {
+            projector.addExtras(mapper, extras);
+        }
+        if (layout != null) {
+            layout.addExtras(layoutSeries, extras);
+        }
         primary.set("extras", extras);
         // "shape"
         ObjectNode shape = mapper.createObjectNode();
@@ -84,16 +152,18 @@ public class FOVWriter {
         primary.set("shape", shape);
         // tiles
         ArrayNode tiles = mapper.createArrayNode();
+        Map<String, String> hashes = new HashMap<>(); // multi-page files are hashed once
         for (int z = 0; z < sizeZ; z++) {
             for (int t = 0; t < sizeT; t++) {
                 for (int c = 0; c < sizeC; c++) {
                     ObjectNode tile = mapper.createObjectNode();
                     ObjectNode coords = mapper.createObjectNode();
-                    for (String idx : new String[]{"xc", "yc", "zc"}) {
+                    int planeIndex = positions.getIndex(z, c, t);
+                    for (int axis = 0; axis < COORDINATES.length; axis++) {
                         ArrayNode coord = mapper.createArrayNode();
-                        Double value = getPosition(idx, z, c, t);
                         // TODO: duplication of value is due to https://github.com/spacetx/slicedimage/pull/75
-                        if (value != null) {
+                        if (positions.has(axis, planeIndex)) {
+                            double value = positions.get(axis, planeIndex);
                             coord.add(value);
                             coord.add(value);
                         } else {
@@ -101,7 +171,7 @@ public class FOVWriter {
                             coord.add(dummy);
                             coord.add(dummy);
                         }
-                        coords.set(idx, coord);
+                        coords.set(COORDINATES[axis], coord);
                     }
                     tile.set("coordinates", coords);
                     String file = naming.getTiffFilename(fov, z, t, c);
@@ -111,11 +181,31 @@ public class FOVWriter {
                     indices.put("r", t);
                     indices.put("z", z);
                     tile.set("indices", indices);
-                    File toHash = new File(out, file);
-                    String hashString = "does-not-exist";  // in case of --no-tiffs
-                    if (toHash.exists()) {
+                    if (naming.isMultipage() || projector != null) {
+                        ObjectNode tileExtras = mapper.createObjectNode();
+                        if (naming.isMultipage()) {
+                            tileExtras.put("page", planeIndex);
+                        }
+                        if (projector != null) {
+                            projector.addTileExtras(mapper, planeIndex, tileExtras);
+                        }
+                        tile.set("extras", tileExtras);
+                    }
+                    String original = aliases.getOrDefault(file, file);
+                    File toHash = new File(out, original);
+                    String hashString = hashes.getOrDefault(original, "does-not-exist");  // in case of --no-tiffs
+                    if (!hashes.containsKey(original) && toHash.exists()) {
+                        Events.Hash event = new Events.Hash();
+                        event.begin();
+                        long start = trace.start();
                         HashCode hashCode = Files.hash(toHash, Hashing.sha256());
                         hashString = hashCode.toString();
+                        trace.end(Trace.Phase.hash, fov, file, start);
+                        event.fov = fov;
+                        event.file = file;
+                        event.bytes = toHash.length();
+                        event.commit();
+                        hashes.put(original, hashString);
                     }
                     tile.put("sha256", hashString);
                     tile.put("tile_format", "TIFF");
@@ -127,41 +217,13 @@ public class FOVWriter {
         primary.set("tiles", tiles);
         primary.put("version", "1.0.0");
         String name = String.format("%s/%s", out, naming.getJsonFilename(fov));
+        Events.ManifestWrite event = new Events.ManifestWrite();
+        event.begin();
         writer.writeValue(new File(name), primary);
+        event.file = name;
+        event.fovs = 1;
+        event.commit();
+        trace.end(Trace.Phase.json, fov, started);
     }
 
-    /**
-     * Return the given position in micrometers or null if the value is not found
-     * or it is not convertible to micrometers.
-     */
-    private Double getPosition(String idx, int z, int c, int t) {
-        Length length;
-
-        // Validate indexes
-        int imageIndex = reader.getSeries();
-        int planeIndex = FormatTools.getIndex(reader, z, c, t);
-
-        // Perform lookup
-        switch (idx) {
-            case "xc":
-                length = meta.getPlanePositionX(imageIndex, planeIndex);
-                break;
-            case "yc":
-                length = meta.getPlanePositionY(imageIndex, planeIndex);
-                break;
-            case "zc":
-                length = meta.getPlanePositionZ(imageIndex, planeIndex);
-                break;
-            default:
-                throw new RuntimeException("unknown: " + idx);
-        }
-
-        // Convert if possible
-        if (length == null || !length.unit().isConvertible(UNITS.MICROMETER)) {
-            return null;
-        }
-        return length.value(UNITS.MICROMETER).doubleValue();
-    }
-
-
 }
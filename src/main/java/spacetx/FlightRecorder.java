@@ -0,0 +1,163 @@
+package spacetx;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records {@link Events} as Java Flight Recorder events. The only class
+ * which refers to jdk.jfr, and only loaded by {@link Events} once the API
+ * has been found.
+ */
+class FlightRecorder implements Events.Recorder {
+
+    @Override
+    public Object begin(Events.Event event) {
+        Event recorded;
+        if (event instanceof Events.PlaneRead) {
+            recorded = new PlaneRead();
+        } else if (event instanceof Events.PlaneWrite) {
+            recorded = new PlaneWrite();
+        } else if (event instanceof Events.Hash) {
+            recorded = new Hash();
+        } else if (event instanceof Events.ManifestWrite) {
+            recorded = new ManifestWrite();
+        } else if (event instanceof Events.ReaderInit) {
+            recorded = new ReaderInit();
+        } else {
+            throw new IllegalArgumentException(event.getClass().getName());
+        }
+        recorded.begin();
+        return recorded;
+    }
+
+    @Override
+    public void commit(Events.Event event, Object recorded) {
+        if (recorded instanceof PlaneRead) {
+            Events.PlaneRead from = (Events.PlaneRead) event;
+            PlaneRead to = (PlaneRead) recorded;
+            to.fov = from.fov;
+            to.series = from.series;
+            to.plane = from.plane;
+            to.bytes = from.bytes;
+        } else if (recorded instanceof PlaneWrite) {
+            Events.PlaneWrite from = (Events.PlaneWrite) event;
+            PlaneWrite to = (PlaneWrite) recorded;
+            to.file = from.file;
+            to.plane = from.plane;
+            to.bytes = from.bytes;
+        } else if (recorded instanceof Hash) {
+            Events.Hash from = (Events.Hash) event;
+            Hash to = (Hash) recorded;
+            to.fov = from.fov;
+            to.file = from.file;
+            to.bytes = from.bytes;
+        } else if (recorded instanceof ManifestWrite) {
+            Events.ManifestWrite from = (Events.ManifestWrite) event;
+            ManifestWrite to = (ManifestWrite) recorded;
+            to.file = from.file;
+            to.fovs = from.fovs;
+        } else if (recorded instanceof ReaderInit) {
+            Events.ReaderInit from = (Events.ReaderInit) event;
+            ReaderInit to = (ReaderInit) recorded;
+            to.input = from.input;
+            to.populated = from.populated;
+            to.seriesCount = from.seriesCount;
+        } else {
+            return; // commit() without begin()
+        }
+        ((Event) recorded).commit();
+    }
+
+    @Name("spacetx.ReaderInit")
+    @Label("Reader Initialization")
+    @Description("setId and, for the parsing reader, populatePixels on an input")
+    @Category({"SpaceTx", "Input"})
+    @StackTrace(false)
+    static class ReaderInit extends Event {
+
+        @Label("Input")
+        String input;
+
+        @Label("Metadata Populated")
+        @Description("False for additional readers used only for pixels")
+        boolean populated;
+
+        @Label("Series Count")
+        int seriesCount;
+    }
+
+    @Name("spacetx.PlaneRead")
+    @Label("Plane Read")
+    @Category({"SpaceTx", "Input"})
+    @StackTrace(false)
+    static class PlaneRead extends Event {
+
+        @Label("FOV")
+        int fov;
+
+        @Label("Series")
+        int series;
+
+        @Label("Plane")
+        int plane;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("spacetx.PlaneWrite")
+    @Label("Plane Write")
+    @Description("One per plane, however many tiles or strips it was written in")
+    @Category({"SpaceTx", "Output"})
+    @StackTrace(false)
+    static class PlaneWrite extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Index")
+        @Description("Plane index within the file")
+        int plane;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("spacetx.Hash")
+    @Label("SHA-256 Hash")
+    @Category({"SpaceTx", "Output"})
+    @StackTrace(false)
+    static class Hash extends Event {
+
+        @Label("FOV")
+        int fov;
+
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("spacetx.ManifestWrite")
+    @Label("Manifest Write")
+    @Description("FOV json or experiment/manifest/codebook json written")
+    @Category({"SpaceTx", "Output"})
+    @StackTrace(false)
+    static class ManifestWrite extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("FOV Count")
+        int fovs;
+    }
+}
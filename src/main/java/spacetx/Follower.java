@@ -0,0 +1,195 @@
+package spacetx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Watches acquisition directories for input files which are still being
+ * written, e.g. by a microscope, and hands on each file once it is complete
+ * so that it can be converted while the acquisition continues.
+ *
+ * Directories are polled rather than watched via {@link java.nio.file.WatchService}
+ * since acquisitions are often written to network shares on which no change
+ * events are delivered. A file is complete once its size and modification
+ * time have not changed for the settle time. The acquisition has ended once
+ * no file has appeared or changed for the idle time.
+ */
+public class Follower {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(Follower.class);
+
+    private final List<Path> dirs = new ArrayList<>();
+
+    private final PathMatcher matcher;
+
+    private final long settle;
+
+    private final long idle;
+
+    private final Consumer<String> consumer;
+
+    /**
+     * Source of the current time in nanoseconds.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Size, modification time and time of the last change of each file
+     * which is not yet complete.
+     */
+    private final Map<Path, long[]> changing = new HashMap<>();
+
+    private final Set<Path> complete = new HashSet<>();
+
+    private final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+    private long lastChange;
+
+    /**
+     * @param dirs acquisition directories, searched recursively
+     * @param glob matched against the name of each file or its path relative to the directory
+     * @param consumer called with each complete file, in name order, on the polling thread
+     */
+    public Follower(List<String> dirs, String glob, long settleMillis, long idleMillis,
+                    Consumer<String> consumer) {
+        this(dirs, glob, settleMillis, idleMillis, consumer, System::nanoTime);
+    }
+
+    /**
+     * @param clock current time in nanoseconds, e.g. to drive {@link #poll()} in tests
+     */
+    public Follower(List<String> dirs, String glob, long settleMillis, long idleMillis,
+                    Consumer<String> consumer, LongSupplier clock) {
+        for (String dir : dirs) {
+            this.dirs.add(new File(dir).toPath());
+        }
+        this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        this.settle = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+        this.idle = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.consumer = consumer;
+        this.clock = clock;
+        this.lastChange = clock.getAsLong();
+    }
+
+    /**
+     * Start polling on a separate thread until the acquisition ends or the
+     * returned future is cancelled.
+     *
+     * @return completed with 0 once the acquisition has ended and every file has been handed on
+     */
+    public CompletableFuture<Integer> start() {
+        lastChange = clock.getAsLong();
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "spacetx-follow");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(100, Math.min(1000, TimeUnit.NANOSECONDS.toMillis(settle) / 2));
+        timer.scheduleWithFixedDelay(this::poll, 0, period, TimeUnit.MILLISECONDS);
+        done.whenComplete((rv, t) -> timer.shutdownNow());
+        return done;
+    }
+
+    /**
+     * @return completed once the acquisition has ended, see {@link #start()}
+     */
+    public CompletableFuture<Integer> getDone() {
+        return done;
+    }
+
+    /**
+     * Check the directories once, handing on every file which has become
+     * complete. Called periodically by {@link #start()}.
+     */
+    public synchronized void poll() {
+        if (done.isDone()) {
+            return;
+        }
+        try {
+            long now = clock.getAsLong();
+            List<Path> ready = new ArrayList<>();
+            Set<Path> seen = new HashSet<>();
+            boolean listed = true;
+            for (Path dir : dirs) {
+                try (Stream<Path> paths = Files.walk(dir)) {
+                    for (Path path : (Iterable<Path>) paths::iterator) {
+                        if (!complete.contains(path) && Files.isRegularFile(path) && matches(dir, path)) {
+                            seen.add(path);
+                            check(path, now, ready);
+                        }
+                    }
+                } catch (UncheckedIOException e) {
+                    // e.g. a temporary file removed while listing, try again next time
+                    LOGGER.debug("failed to list {}", dir, e);
+                    listed = false;
+                }
+            }
+            // Files removed or renamed before they settled, e.g. temporary files
+            if (listed && changing.keySet().retainAll(seen)) {
+                lastChange = now;
+            }
+            Collections.sort(ready);
+            for (Path path : ready) {
+                complete.add(path);
+                LOGGER.info("converting {}", path);
+                consumer.accept(path.toString());
+            }
+            if (changing.isEmpty() && now - lastChange >= idle) {
+                LOGGER.info("no changes for {} ms, ending after {} inputs",
+                        TimeUnit.NANOSECONDS.toMillis(idle), complete.size());
+                done.complete(0);
+            }
+        } catch (Throwable t) {
+            done.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Record the current state of the file and add it to ready if it has not
+     * changed for the settle time.
+     */
+    private void check(Path path, long now, List<Path> ready) {
+        long[] state;
+        try {
+            state = new long[]{Files.size(path), Files.getLastModifiedTime(path).toMillis(), now};
+        } catch (IOException e) {
+            changing.remove(path); // removed since listing
+            return;
+        }
+        long[] last = changing.get(path);
+        if (last == null || last[0] != state[0] || last[1] != state[1]) {
+            changing.put(path, state);
+            lastChange = now;
+        } else if (now - last[2] >= settle) {
+            changing.remove(path);
+            ready.add(path);
+            lastChange = now;
+        }
+    }
+
+    private boolean matches(Path dir, Path path) {
+        return matcher.matches(path.getFileName()) || matcher.matches(dir.relativize(path));
+    }
+}
@@ -0,0 +1,121 @@
+package spacetx;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hashing;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Persistent cache of the {@link OMEXMLMetadata} produced by {@link FOVParser}
+ * so that repeated runs (e.g. regenerating only the json with --no-tiffs)
+ * need not parse the raw files again.
+ *
+ * Entries are keyed by the absolute input path, its size and modification
+ * time, and the reader settings. Each entry also records the size and
+ * modification time of every file Bio-Formats used so that a change to
+ * any file of a multi-file fileset invalidates the entry.
+ */
+public class MetadataCache {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(MetadataCache.class);
+
+    /**
+     * Bump whenever the contents of an entry change.
+     */
+    private final static String VERSION = "1";
+
+    private final File dir;
+
+    private final String settings;
+
+    /**
+     * @param dir directory holding the entries. Created if necessary.
+     * @param settings reader format, options and flags which affect parsing.
+     */
+    public MetadataCache(File dir, String settings) {
+        this.dir = dir;
+        this.settings = settings;
+    }
+
+    /**
+     * @return the cached metadata or null if there is no valid entry.
+     */
+    public OMEXMLMetadata load(String input) {
+        File entry = entry(input);
+        if (!entry.exists()) {
+            return null;
+        }
+        try {
+            JsonNode root = new ObjectMapper().readTree(entry);
+            for (JsonNode used : root.get("files")) {
+                File file = new File(used.get("path").asText());
+                if (file.length() != used.get("size").asLong()
+                        || file.lastModified() != used.get("mtime").asLong()) {
+                    LOGGER.info("stale metadata cache for {}: {} changed", input, file);
+                    return null;
+                }
+            }
+            OMEXMLService xml = new ServiceFactory().getInstance(OMEXMLService.class);
+            return xml.createOMEXMLMetadata(root.get("xml").asText());
+        } catch (IOException | RuntimeException | ServiceException | DependencyException e) {
+            LOGGER.warn("ignoring unreadable metadata cache {}", entry, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the metadata for the input. Failures are logged rather than
+     * thrown since the cache is only an optimization.
+     *
+     * @param usedFiles as returned by the reader after parsing.
+     */
+    public void save(String input, String[] usedFiles, OMEXMLMetadata meta) {
+        File entry = entry(input);
+        try {
+            OMEXMLService xml = new ServiceFactory().getInstance(OMEXMLService.class);
+            ObjectMapper mapper = new ObjectMapper();
+            ObjectNode root = mapper.createObjectNode();
+            root.put("input", input);
+            ArrayNode files = mapper.createArrayNode();
+            for (String path : usedFiles) {
+                File file = new File(path);
+                ObjectNode used = mapper.createObjectNode();
+                used.put("path", file.getAbsolutePath());
+                used.put("size", file.length());
+                used.put("mtime", file.lastModified());
+                files.add(used);
+            }
+            root.set("files", files);
+            root.put("xml", xml.getOMEXML(meta));
+            dir.mkdirs();
+            File tmp = File.createTempFile(entry.getName(), ".tmp", dir);
+            mapper.writer().writeValue(tmp, root);
+            Files.move(tmp.toPath(), entry.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | ServiceException | DependencyException e) {
+            LOGGER.warn("failed to cache metadata for {} in {}", input, entry, e);
+        }
+    }
+
+    private File entry(String input) {
+        File file = new File(input).getAbsoluteFile();
+        String key = String.join("\n", VERSION, settings, file.getPath(),
+                String.valueOf(file.length()), String.valueOf(file.lastModified()));
+        String hash = Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+        return new File(dir, hash + ".json");
+    }
+}
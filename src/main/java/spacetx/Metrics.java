@@ -0,0 +1,267 @@
+package spacetx;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a running conversion which can be scraped by Prometheus from
+ * a local HTTP endpoint, see {@link #serve(int)}.
+ *
+ * All updates are lock-free: counters are {@link LongAdder}s and phase
+ * latencies are counted into fixed power-of-two buckets of microseconds
+ * from which quantiles are estimated only when scraped. Executor queue
+ * depths and JVM statistics are likewise read only when scraped.
+ */
+public class Metrics {
+
+    /**
+     * Disabled instance which records nothing.
+     */
+    public static final Metrics NONE = new Metrics(false);
+
+    /**
+     * Latencies of up to 2^(BUCKETS-1) microseconds, i.e. about 17 minutes.
+     */
+    private final static int BUCKETS = 31;
+
+    private final static double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final boolean enabled;
+
+    private final long started = System.nanoTime();
+
+    private final LongAdder planes = new LongAdder();
+    private final LongAdder planesQueued = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder pending = new LongAdder();
+    private final LongAdder fovsStarted = new LongAdder();
+    private final LongAdder fovsDone = new LongAdder();
+    private final LongAdder fovsFailed = new LongAdder();
+
+    private final AtomicLongArray[] latencies = new AtomicLongArray[Trace.Phase.values().length];
+    private final LongAdder[] latencySums = new LongAdder[latencies.length];
+
+    private volatile ForkJoinPool executor;
+
+    private volatile HttpServer server;
+
+    /**
+     * Thread answering scrapes, stopped along with the server.
+     */
+    private ExecutorService serverExecutor;
+
+    public Metrics() {
+        this(true);
+    }
+
+    private Metrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new AtomicLongArray(BUCKETS);
+            latencySums[i] = new LongAdder();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param executor whose queue depth and active threads are reported, if a {@link ForkJoinPool}
+     */
+    public void setExecutor(Object executor) {
+        if (executor instanceof ForkJoinPool) {
+            this.executor = (ForkJoinPool) executor;
+        }
+    }
+
+    /**
+     * Record the duration of a phase.
+     */
+    public void observe(Trace.Phase phase, long nanos) {
+        if (!enabled) {
+            return;
+        }
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+        latencies[phase.ordinal()].incrementAndGet(bucket);
+        latencySums[phase.ordinal()].add(nanos);
+    }
+
+    /**
+     * A FOV with the given number of planes has been scheduled.
+     */
+    public void fovStarted(int planeCount) {
+        if (enabled) {
+            fovsStarted.increment();
+            planesQueued.add(planeCount);
+        }
+    }
+
+    public void fovDone(boolean success) {
+        if (enabled) {
+            (success ? fovsDone : fovsFailed).increment();
+        }
+    }
+
+    public void planeWritten(long planeBytes) {
+        if (enabled) {
+            planes.increment();
+            bytes.add(planeBytes);
+        }
+    }
+
+    /**
+     * @param delta change in the number of planes being read or waiting for the
+     *              writer, which is bounded by the read-ahead of each FOV
+     */
+    public void pending(int delta) {
+        if (enabled) {
+            pending.add(delta);
+        }
+    }
+
+    /**
+     * Serve the metrics at http://localhost:port/metrics until {@link #close()}.
+     *
+     * @param port 0 to choose any free port, see {@link #getPort()}
+     */
+    public void serve(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        serverExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "spacetx-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    /**
+     * @return the port being served, e.g. the one chosen when passing 0 to
+     *         {@link #serve(int)}, or -1 if not serving
+     */
+    public int getPort() {
+        HttpServer running = server;
+        return running == null ? -1 : running.getAddress().getPort();
+    }
+
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+            serverExecutor.shutdownNow();
+            serverExecutor = null;
+        }
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        double seconds = (System.nanoTime() - started) / 1e9;
+        long written = bytes.sum();
+        counter(sb, "spacetx_planes_written_total", "Planes written", planes.sum());
+        counter(sb, "spacetx_bytes_written_total", "Bytes of pixels written", written);
+        gauge(sb, "spacetx_write_megabytes_per_second", "Average write rate since start",
+                written / (1024.0 * 1024.0) / Math.max(seconds, 1e-3));
+        gauge(sb, "spacetx_planes_remaining", "Planes of scheduled FOVs not yet written",
+                planesQueued.sum() - planes.sum());
+        gauge(sb, "spacetx_planes_pending", "Planes being read or waiting for the writer", pending.sum());
+        counter(sb, "spacetx_fovs_done_total", "FOVs completely written", fovsDone.sum());
+        counter(sb, "spacetx_fovs_failed_total", "FOVs which failed", fovsFailed.sum());
+        gauge(sb, "spacetx_fovs_remaining", "FOVs scheduled but not yet done",
+                fovsStarted.sum() - fovsDone.sum() - fovsFailed.sum());
+        ForkJoinPool pool = executor;
+        if (pool != null) {
+            gauge(sb, "spacetx_tasks_active", "Threads running tasks", pool.getActiveThreadCount());
+            gauge(sb, "spacetx_tasks_queued", "Tasks waiting for a thread",
+                    pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+        }
+
+        sb.append("# HELP spacetx_phase_seconds Duration of each conversion phase\n");
+        sb.append("# TYPE spacetx_phase_seconds summary\n");
+        for (Trace.Phase phase : Trace.Phase.values()) {
+            AtomicLongArray buckets = latencies[phase.ordinal()];
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                continue;
+            }
+            for (double q : QUANTILES) {
+                sb.append(String.format("spacetx_phase_seconds{phase=\"%s\",quantile=\"%s\"} %s%n",
+                        phase, q, quantile(counts, total, q)));
+            }
+            sb.append(String.format("spacetx_phase_seconds_sum{phase=\"%s\"} %s%n",
+                    phase, latencySums[phase.ordinal()].sum() / 1e9));
+            sb.append(String.format("spacetx_phase_seconds_count{phase=\"%s\"} %d%n", phase, total));
+        }
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        gauge(sb, "jvm_heap_used_bytes", "Used heap", heap.getUsed());
+        gauge(sb, "jvm_heap_max_bytes", "Maximum heap", heap.getMax());
+        long gcCount = 0, gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        counter(sb, "jvm_gc_collections_total", "Garbage collections", gcCount);
+        counter(sb, "jvm_gc_seconds_total", "Time spent in garbage collection", gcMillis / 1000.0);
+        return sb.toString();
+    }
+
+    /**
+     * @return the upper bound in seconds of the bucket containing the quantile
+     */
+    private static double quantile(long[] counts, long total, double q) {
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (1L << i) / 1e6;
+            }
+        }
+        return (1L << (counts.length - 1)) / 1e6;
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, Number value) {
+        metric(sb, "counter", name, help, value);
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, Number value) {
+        metric(sb, "gauge", name, help, value);
+    }
+
+    private static void metric(StringBuilder sb, String type, String name, String help, Number value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -8,21 +8,136 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * Enumeration of strategies for how files should be named on disk.
+ *
+ * All names are relative to the output directory, which is also where the
+ * FOV json files are written, and therefore can be used as-is in the json.
  */
 public enum Naming {
 
-    standard("primary_image-fov");
+    /**
+     * All files in a single, flat output directory.
+     */
+    standard("primary_image-fov"),
 
-    private final String root;
+    /**
+     * Shards the OME-TIFFs into a directory per FOV with a sub-directory per
+     * round, e.g. "fov_000/r2/primary_image-fov_000_Z0_T2_C1.ome.tiff", so that
+     * no single directory holds more than Z x C files for large experiments.
+     * The companion file is placed in the FOV directory. The json files remain
+     * at the top-level.
+     *
+     * Names are built without {@link String#format(String, Object...)} since
+     * they are generated for every plane.
+     */
+    hierarchical("primary_image-fov") {
+
+        @Override
+        public String getFOV(int fov) {
+            return pad(new StringBuilder("fov_"), fov).toString();
+        }
+
+        @Override
+        public String getTiffPattern(int fov) {
+            StringBuilder sb = new StringBuilder(64);
+            directory(sb, fov).append("r%t/");
+            return pad(sb.append(root).append('_'), fov).append("_Z%z_T%t_C%c.ome.tiff").toString();
+        }
+
+        @Override
+        public String getTiffFilename(int fov, int z, int t, int c) {
+            StringBuilder sb = new StringBuilder(64);
+            directory(sb, fov).append('r').append(t).append('/');
+            return pad(sb.append(root).append('_'), fov)
+                    .append("_Z").append(z)
+                    .append("_T").append(t)
+                    .append("_C").append(c)
+                    .append(".ome.tiff").toString();
+        }
+
+        @Override
+        public String getProjectionFilename(int fov, String kind, int t, int c) {
+            StringBuilder sb = new StringBuilder(64);
+            directory(sb, fov).append('r').append(t).append('/');
+            return pad(sb.append(root).append('_'), fov)
+                    .append('_').append(kind)
+                    .append("_T").append(t)
+                    .append("_C").append(c)
+                    .append(".ome.tiff").toString();
+        }
+
+        @Override
+        public String getJsonFilename(int fov) {
+            return pad(new StringBuilder(32).append(root).append('_'), fov).append(".json").toString();
+        }
+
+        @Override
+        public String getCompanionFilename(int fov) {
+            StringBuilder sb = new StringBuilder(64);
+            directory(sb, fov);
+            return pad(sb.append(root).append('_'), fov).append(".companion.ome").toString();
+        }
+
+        private StringBuilder directory(StringBuilder sb, int fov) {
+            return pad(sb.append("fov_"), fov).append('/');
+        }
+    },
+
+    /**
+     * Writes every plane of a FOV into a single multi-page OME-TIFF, e.g.
+     * "primary_image-fov_000.ome.tiff", reducing the number of files by a
+     * factor of Z x T x C. Pages are in plane order and each tile in the FOV
+     * json refers to its page via "extras".
+     */
+    multipage("primary_image-fov") {
+
+        @Override
+        public String getTiffPattern(int fov) {
+            return getTiffFilename(fov, 0, 0, 0);
+        }
+
+        @Override
+        public String getTiffFilename(int fov, int z, int t, int c) {
+            return pad(new StringBuilder(48).append(root).append('_'), fov).append(".ome.tiff").toString();
+        }
+
+        @Override
+        public boolean isMultipage() {
+            return true;
+        }
+    };
+
+    final String root;
 
     Naming(String root) {
         this.root = root;
     }
 
+    /**
+     * Equivalent to appending {@code String.format("%03d", value)} for
+     * non-negative values.
+     */
+    static StringBuilder pad(StringBuilder sb, int value) {
+        if (value < 100) {
+            sb.append('0');
+        }
+        if (value < 10) {
+            sb.append('0');
+        }
+        return sb.append(value);
+    }
+
     public String getFOV(int fov) {
         return String.format("fov_%03d", fov);
     }
 
+    /**
+     * Whether all planes of a FOV share a single file, in which case the
+     * page of each plane is its plane index.
+     */
+    public boolean isMultipage() {
+        return false;
+    }
+
     public String getTiffPattern(int fov) {
         return String.format("%s_%03d_Z%%z_T%%t_C%%c.ome.tiff", root, fov);
     }
@@ -31,6 +146,13 @@ public enum Naming {
         return String.format("%s_%03d_Z%d_T%d_C%d.ome.tiff", root, fov, z, t, c);
     }
 
+    /**
+     * @param kind of projection over Z, e.g. {@link Projector#MAX}
+     */
+    public String getProjectionFilename(int fov, String kind, int t, int c) {
+        return String.format("%s_%03d_%s_T%d_C%d.ome.tiff", root, fov, kind, t, c);
+    }
+
     public String getManifestFilename() {
         return String.format("%s.json", root);
     }
@@ -39,6 +161,10 @@ public enum Naming {
         return String.format("%s_%03d.json", root, fov);
     }
 
+    public String getPositionsFilename() {
+        return String.format("%s_positions.csv", root);
+    }
+
     public String getCompanionFilename(int fov) {
         return String.format("%s_%03d.companion.ome", root, fov);
     }
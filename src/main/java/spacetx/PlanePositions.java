@@ -0,0 +1,122 @@
+package spacetx;
+
+import loci.formats.FormatTools;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+import java.util.BitSet;
+
+/**
+ * Stage positions of every plane of a single series in micrometers,
+ * looked up from the OME-XML once rather than for every tile coordinate.
+ *
+ * Positions which are not set or which are not convertible to micrometers
+ * are recorded as missing.
+ */
+public class PlanePositions {
+
+    public static final int X = 0, Y = 1, Z = 2;
+
+    private final int image, series;
+    private final int sizeZ, sizeC, sizeT, planeCount;
+    private final String order;
+
+    /**
+     * Positions by axis and then plane index.
+     */
+    private final double[][] values;
+
+    /**
+     * Set bit at axis * planeCount + plane if the value is missing.
+     */
+    private final BitSet missing;
+
+    /**
+     * @param meta as populated by {@link FOVParser}
+     * @param series image index within the metadata
+     */
+    public PlanePositions(OMEXMLMetadata meta, int series) {
+        this(meta, series, series);
+    }
+
+    /**
+     * @param meta e.g. a single-image copy reduced to a selection
+     * @param image image index within the metadata
+     * @param series series of the input which the image was taken from
+     */
+    public PlanePositions(OMEXMLMetadata meta, int image, int series) {
+        this.image = image;
+        this.series = series;
+        this.sizeZ = meta.getPixelsSizeZ(image).getValue();
+        this.sizeT = meta.getPixelsSizeT(image).getValue();
+        int channels = meta.getChannelCount(image);
+        this.sizeC = channels > 0 ? channels : meta.getPixelsSizeC(image).getValue();
+        this.planeCount = sizeZ * sizeC * sizeT;
+        this.order = meta.getPixelsDimensionOrder(image).getValue();
+        this.values = new double[3][planeCount];
+        this.missing = new BitSet(3 * planeCount);
+
+        int defined = meta.getPlaneCount(image);
+        for (int plane = 0; plane < planeCount; plane++) {
+            if (plane >= defined) {
+                missing.set(X * planeCount + plane);
+                missing.set(Y * planeCount + plane);
+                missing.set(Z * planeCount + plane);
+                continue;
+            }
+            set(X, plane, meta.getPlanePositionX(image, plane));
+            set(Y, plane, meta.getPlanePositionY(image, plane));
+            set(Z, plane, meta.getPlanePositionZ(image, plane));
+        }
+    }
+
+    private void set(int axis, int plane, Length length) {
+        if (length == null || !length.unit().isConvertible(UNITS.MICROMETER)) {
+            missing.set(axis * planeCount + plane);
+        } else {
+            values[axis][plane] = length.value(UNITS.MICROMETER).doubleValue();
+        }
+    }
+
+    /**
+     * @return index of the image within the metadata the positions were read from
+     */
+    public int getImage() {
+        return image;
+    }
+
+    /**
+     * @return series of the input, which differs from the image if the
+     *         metadata was reduced to a selection
+     */
+    public int getSeries() {
+        return series;
+    }
+
+    public int getPlaneCount() {
+        return planeCount;
+    }
+
+    public int getIndex(int z, int c, int t) {
+        return FormatTools.getIndex(order, sizeZ, sizeC, sizeT, planeCount, z, c, t);
+    }
+
+    /**
+     * @return z, c, and t of the given plane index.
+     */
+    public int[] getZCT(int plane) {
+        return FormatTools.getZCTCoords(order, sizeZ, sizeC, sizeT, planeCount, plane);
+    }
+
+    public boolean has(int axis, int plane) {
+        return !missing.get(axis * planeCount + plane);
+    }
+
+    /**
+     * @return the position in micrometers. Only valid if {@link #has(int, int)}.
+     */
+    public double get(int axis, int plane) {
+        return values[axis][plane];
+    }
+}
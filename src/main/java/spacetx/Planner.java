@@ -0,0 +1,260 @@
+package spacetx;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.model.primitives.PositiveInteger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Estimates the cost of a conversion from the parsed metadata alone and
+ * recommends the number of threads, the heap size and the depth of the
+ * {@link BufferPool} based on a short calibration of read and write
+ * throughput.
+ *
+ * The model is deliberately simple: planes are read in parallel by each
+ * thread at the calibrated per-thread rate while writes share the
+ * bandwidth of the target directory. More threads than are needed to
+ * saturate the writes, than there are cores, or than fit into the heap
+ * are not recommended.
+ */
+public class Planner {
+
+    /**
+     * Fixed overhead (Bio-Formats, metadata, etc.) assumed for the heap.
+     */
+    private final static long BASE_HEAP = 256L * 1024 * 1024;
+
+    /**
+     * Amount written when calibrating the target directory.
+     */
+    private final static int CALIBRATION_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Time after which calibration reads stop.
+     */
+    private final static long CALIBRATION_NANOS = 1000L * 1000 * 1000;
+
+    private final Naming naming;
+
+    private final boolean direct;
+
+    /**
+     * Size of the strips in which planes are streamed.
+     */
+    private int stripBytes = FOVConverter.STRIP_BYTES;
+
+    /**
+     * Planes larger than this are streamed rather than held as a whole.
+     */
+    private long maxBufferBytes = FOVConverter.MAX_BUFFER;
+
+    private int fovs = 0;
+
+    private long planes = 0;
+
+    private long bytes = 0;
+
+    private long files = 0;
+
+    private long maxPlaneBytes = 0;
+
+    private long maxFOVBytes = 0;
+
+    /**
+     * Bytes per second read by a single thread, or 0 if not calibrated.
+     */
+    private double readRate = 0;
+
+    /**
+     * Bytes per second written to the target directory, or 0 if not calibrated.
+     */
+    private double writeRate = 0;
+
+    /**
+     * @param direct whether planes will be streamed in strips via {@link ChannelTiffWriter}
+     */
+    public Planner(Naming naming, boolean direct) {
+        this.naming = naming;
+        this.direct = direct;
+    }
+
+    /**
+     * @see FOVConverter#setStripBytes(int)
+     */
+    public void setStripBytes(int stripBytes) {
+        this.stripBytes = stripBytes;
+        this.maxBufferBytes = Math.min(FOVConverter.MAX_BUFFER, stripBytes);
+    }
+
+    /**
+     * @return bytes of a single plane of the series according to the metadata.
+     */
+    public static long getPlaneBytes(OMEXMLMetadata meta, int series) {
+        long samples = 1;
+        if (meta.getChannelCount(series) > 0) {
+            PositiveInteger spp = meta.getChannelSamplesPerPixel(series, 0);
+            if (spp != null) {
+                samples = spp.getValue();
+            }
+        }
+        int pixelType = FormatTools.pixelTypeFromString(meta.getPixelsType(series).getValue());
+        return (long) meta.getPixelsSizeX(series).getValue() * meta.getPixelsSizeY(series).getValue()
+                * samples * FormatTools.getBytesPerPixel(pixelType);
+    }
+
+    /**
+     * Account for a single FOV.
+     */
+    public void add(FOVParser parser, int series) {
+        OMEXMLMetadata meta = parser.getMetadata();
+        PlanePositions positions = new PlanePositions(meta, series);
+        long count = positions.getPlaneCount();
+        long planeBytes = getPlaneBytes(meta, series);
+        fovs++;
+        planes += count;
+        bytes += count * planeBytes;
+        files += (naming.isMultipage() ? 1 : count) + 2; // companion and json
+        maxPlaneBytes = Math.max(maxPlaneBytes, planeBytes);
+        maxFOVBytes = Math.max(maxFOVBytes, count * planeBytes);
+    }
+
+    /**
+     * Time reading a few planes of the series with a single reader and
+     * writing {@link #CALIBRATION_BYTES} into a temporary file in the
+     * directory (or the nearest existing parent).
+     */
+    public void calibrate(FOVParser parser, int series, File dir) throws IOException, FormatException {
+        IFormatReader reader = parser.borrow(series);
+        try {
+            // Large planes are sampled by reading a strip
+            int rows = (int) Math.max(1, Math.min(reader.getSizeY(),
+                    stripBytes * (long) reader.getSizeY() / Math.max(1, maxPlaneBytes)));
+            long read = 0;
+            long start = System.nanoTime();
+            for (int no = 0; no < reader.getImageCount(); no++) {
+                if (rows == reader.getSizeY()) {
+                    read += reader.openBytes(no).length;
+                } else {
+                    read += reader.openBytes(no, 0, 0, reader.getSizeX(), rows).length;
+                }
+                if (System.nanoTime() - start > CALIBRATION_NANOS) {
+                    break;
+                }
+            }
+            readRate = read / seconds(start);
+        } finally {
+            parser.release(reader);
+        }
+
+        File existing = dir.getAbsoluteFile();
+        while (!existing.isDirectory()) {
+            existing = existing.getParentFile();
+        }
+        Path tmp = Files.createTempFile(existing.toPath(), ".spacetx-calibration", ".tmp");
+        try {
+            ByteBuffer buf = ByteBuffer.allocateDirect(stripBytes);
+            long start = System.nanoTime();
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                long position = 0;
+                while (position < CALIBRATION_BYTES) {
+                    buf.clear();
+                    position += channel.write(buf, position);
+                }
+                channel.force(true);
+            }
+            writeRate = CALIBRATION_BYTES / seconds(start);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static double seconds(long start) {
+        return Math.max(1, System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * @return bytes held per thread, i.e. for the default path a plane being
+     *         read, one waiting to be written and one retained in the pool,
+     *         or a strip and its copy if planes are streamed.
+     */
+    private long perThreadBytes() {
+        if (direct || maxPlaneBytes > maxBufferBytes) {
+            return 2L * stripBytes;
+        }
+        return 3 * maxPlaneBytes;
+    }
+
+    public int recommendThreads() {
+        return recommendThreads(Runtime.getRuntime().maxMemory());
+    }
+
+    /**
+     * @param heap maximum heap available to the conversion
+     */
+    public int recommendThreads(long heap) {
+        long threads = Runtime.getRuntime().availableProcessors();
+        if (readRate > 0 && writeRate > 0) {
+            threads = Math.min(threads, (long) Math.ceil(writeRate / readRate));
+        }
+        long perThread = perThreadBytes();
+        if (perThread > 0) {
+            threads = Math.min(threads, Math.max(0, heap - BASE_HEAP) / perThread);
+        }
+        threads = Math.min(threads, Math.max(1, planes));
+        return (int) Math.max(1, threads);
+    }
+
+    /**
+     * @return heap in bytes, rounded up to the next 256MB.
+     */
+    public long recommendHeap(int threads) {
+        long heap = BASE_HEAP + threads * perThreadBytes();
+        return (heap + BASE_HEAP - 1) / BASE_HEAP * BASE_HEAP;
+    }
+
+    /**
+     * @return number of idle plane buffers to retain per size.
+     */
+    public int recommendDepth(int threads) {
+        return 2 * threads;
+    }
+
+    public void report(PrintStream out) {
+        int threads = recommendThreads(Long.MAX_VALUE);
+        out.println(String.format("FOVs:             %d", fovs));
+        out.println(String.format("planes:           %d", planes));
+        out.println(String.format("pixel bytes:      %s", mb(bytes)));
+        out.println(String.format("files:            %d", files));
+        out.println(String.format("largest plane:    %s", mb(maxPlaneBytes)));
+        out.println(String.format("largest FOV:      %s", mb(maxFOVBytes)));
+        if (readRate > 0) {
+            out.println(String.format("read per thread:  %s/s", mb((long) readRate)));
+        }
+        if (readRate > 0 && writeRate > 0) {
+            out.println(String.format("write:            %s/s", mb((long) writeRate)));
+            out.println(String.format("expected time:    %.1fs",
+                    bytes / Math.min(writeRate, readRate * threads)));
+        }
+        out.println(String.format("recommended:      -j %d, -Xmx%dm, pool depth %d",
+                threads, recommendHeap(threads) / (1024 * 1024), recommendDepth(threads)));
+        int fitting = recommendThreads();
+        if (fitting < threads) {
+            out.println(String.format("current heap (%s) only allows -j %d",
+                    mb(Runtime.getRuntime().maxMemory()), fitting));
+        }
+    }
+
+    private static String mb(long bytes) {
+        return String.format("%.1fMB", bytes / (1024.0 * 1024.0));
+    }
+}
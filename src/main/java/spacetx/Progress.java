@@ -0,0 +1,43 @@
+package spacetx;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Receives progress events of a conversion started via {@link FOVTool#start(java.util.concurrent.Executor)}.
+ *
+ * Events are delivered on the threads doing the work, i.e. the threads of
+ * the executor, so implementations must be thread-safe and should return
+ * quickly. Every method does nothing by default.
+ */
+public interface Progress {
+
+    /**
+     * Ignores all events.
+     */
+    Progress NONE = new Progress() {};
+
+    /**
+     * A FOV has been parsed and its planes are about to be scheduled.
+     *
+     * @param planeCount number of planes which will be written, 0 with --no-tiffs
+     * @param done completed once the FOV json has been written, or
+     *             exceptionally if the FOV failed or was cancelled
+     */
+    default void fovStarted(int fov, String input, int series, int planeCount, CompletableFuture<Integer> done) {
+    }
+
+    /**
+     * A plane, or the strips of a plane, has been written.
+     *
+     * @param plane index of the plane within the FOV
+     */
+    default void planeWritten(int fov, int plane, long bytes) {
+    }
+
+    /**
+     * @param error null if the FOV json was written, otherwise the cause of
+     *              failure, e.g. a {@link java.util.concurrent.CancellationException}
+     */
+    default void fovDone(int fov, Throwable error) {
+    }
+}
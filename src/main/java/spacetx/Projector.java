@@ -0,0 +1,352 @@
+package spacetx;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.services.OMEXMLService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes the maximum and mean intensity projection over Z of every round
+ * and channel, as well as the minimum, maximum and histogram of every plane,
+ * while the planes pass through the converter so that downstream tools need
+ * not re-read the written TIFFs.
+ *
+ * Pixels are first decoded into a float array which is then processed by
+ * simple primitive loops that the JIT can vectorize. Only single-sample
+ * uint8, uint16 and float planes are supported; see {@link #supports(int, int)}.
+ *
+ * Each projection is written as soon as all of its Z planes have been
+ * added, so at most the projections currently in progress are held in
+ * memory. Histograms have 256 bins over the full range of the pixel type
+ * and are not computed for float data.
+ */
+public class Projector {
+
+    public final static String MAX = "max", MEAN = "mean";
+
+    private final static int BINS = 256;
+
+    /**
+     * Running projection over Z of a single round and channel.
+     */
+    private static class Accumulator {
+
+        final float[] max;
+
+        final float[] sum;
+
+        int planes = 0;
+
+        Accumulator(int pixels) {
+            max = new float[pixels];
+            sum = new float[pixels];
+            Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        }
+    }
+
+    private final Naming naming;
+    private final int fov;
+    private final File out;
+    private final Trace trace;
+    private final int sizeX, sizeY, sizeZ, sizeC, sizeT;
+    private final int pixelType, bpp;
+    private final boolean littleEndian;
+
+    /**
+     * z, c, and t of each plane.
+     */
+    private final int[][] zct;
+
+    /**
+     * Indexed by c + sizeC * t. Null before the first and after the last plane.
+     */
+    private final Accumulator[] accumulators;
+
+    /**
+     * Statistics by plane index. Each plane is only ever added to by one
+     * thread at a time.
+     */
+    private final float[] min, max;
+
+    /**
+     * Null for float data.
+     */
+    private final int[][] histograms;
+
+    /**
+     * Decoded pixels, reused by each thread.
+     */
+    private final ThreadLocal<float[]> scratch = new ThreadLocal<>();
+
+    /**
+     * @param zct z, c, and t of each plane
+     */
+    public Projector(Naming naming, int fov, File out, Trace trace, int[][] zct,
+                     int sizeX, int sizeY, int sizeZ, int sizeC, int sizeT,
+                     int pixelType, boolean littleEndian) {
+        this.naming = naming;
+        this.fov = fov;
+        this.out = out;
+        this.trace = trace;
+        this.zct = zct;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sizeC = sizeC;
+        this.sizeT = sizeT;
+        this.pixelType = pixelType;
+        this.bpp = FormatTools.getBytesPerPixel(pixelType);
+        this.littleEndian = littleEndian;
+        this.accumulators = new Accumulator[sizeC * sizeT];
+        this.min = new float[zct.length];
+        this.max = new float[zct.length];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        this.histograms = pixelType == FormatTools.FLOAT ? null : new int[zct.length][BINS];
+    }
+
+    /**
+     * @return whether planes of this type and number of samples can be projected.
+     */
+    public static boolean supports(int pixelType, int samples) {
+        return samples == 1 && (pixelType == FormatTools.UINT8
+                || pixelType == FormatTools.UINT16 || pixelType == FormatTools.FLOAT);
+    }
+
+    /**
+     * Add all or part of a plane.
+     *
+     * @param buf pixels as returned by the reader
+     * @param offset index of the first pixel of buf within the plane, which starts a row
+     */
+    public void add(int plane, byte[] buf, int offset) {
+        add(plane, buf, 0, offset / sizeX, sizeX);
+    }
+
+    /**
+     * Add a tile of the plane.
+     *
+     * @param x of the tile within the plane
+     * @param y of the tile within the plane
+     * @param w width of the tile, whose height follows from the buffer size
+     */
+    public void add(int plane, byte[] buf, int x, int y, int w) {
+        long start = trace.start();
+        int count = buf.length / bpp;
+        float[] values = decode(buf, count);
+
+        float lo = min[plane], hi = max[plane];
+        for (int i = 0; i < count; i++) {
+            lo = Math.min(lo, values[i]);
+            hi = Math.max(hi, values[i]);
+        }
+        min[plane] = lo;
+        max[plane] = hi;
+
+        if (histograms != null) {
+            int[] histogram = histograms[plane];
+            int shift = pixelType == FormatTools.UINT16 ? 8 : 0;
+            for (int i = 0; i < count; i++) {
+                histogram[(int) values[i] >>> shift]++;
+            }
+        }
+
+        Accumulator acc = accumulator(plane);
+        synchronized (acc) {
+            float[] projected = acc.max;
+            float[] sum = acc.sum;
+            for (int i = 0, row = 0; i < count; row++) {
+                int offset = (y + row) * sizeX + x;
+                for (int col = 0; col < w; col++, i++) {
+                    projected[offset + col] = Math.max(projected[offset + col], values[i]);
+                    sum[offset + col] += values[i];
+                }
+            }
+        }
+        trace.end(Trace.Phase.project, fov, start);
+    }
+
+    /**
+     * Called once all pixels of the plane have been added. Writes the
+     * projections of the plane's round and channel if it was the last Z.
+     */
+    public void done(int plane) throws IOException, FormatException {
+        int c = zct[plane][1];
+        int t = zct[plane][2];
+        Accumulator acc = accumulator(plane);
+        synchronized (acc) {
+            if (++acc.planes < sizeZ) {
+                return;
+            }
+        }
+        synchronized (accumulators) {
+            accumulators[c + sizeC * t] = null;
+        }
+        long start = trace.start();
+        int pixels = sizeX * sizeY;
+        byte[] projected = new byte[pixels * bpp];
+        for (int i = 0; i < pixels; i++) {
+            encode(pixelType, acc.max[i], projected, i);
+        }
+        save(naming.getProjectionFilename(fov, MAX, t, c), pixelType, projected);
+        byte[] mean = new byte[pixels * 4];
+        float scale = 1.0f / sizeZ;
+        for (int i = 0; i < pixels; i++) {
+            encode(FormatTools.FLOAT, acc.sum[i] * scale, mean, i);
+        }
+        save(naming.getProjectionFilename(fov, MEAN, t, c), FormatTools.FLOAT, mean);
+        trace.end(Trace.Phase.project, fov, naming.getProjectionFilename(fov, MAX, t, c), start);
+    }
+
+    /**
+     * @return the name of every projection file, whether written yet or not
+     */
+    public List<String> getFilenames() {
+        List<String> names = new ArrayList<>();
+        for (int t = 0; t < sizeT; t++) {
+            for (int c = 0; c < sizeC; c++) {
+                names.add(naming.getProjectionFilename(fov, MAX, t, c));
+                names.add(naming.getProjectionFilename(fov, MEAN, t, c));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Add the projection files to the "extras" of the FOV json.
+     */
+    public void addExtras(ObjectMapper mapper, ObjectNode extras) {
+        ArrayNode projections = mapper.createArrayNode();
+        for (int t = 0; t < sizeT; t++) {
+            for (int c = 0; c < sizeC; c++) {
+                ObjectNode projection = mapper.createObjectNode();
+                projection.put("c", c);
+                projection.put("r", t);
+                projection.put(MAX, naming.getProjectionFilename(fov, MAX, t, c));
+                projection.put(MEAN, naming.getProjectionFilename(fov, MEAN, t, c));
+                projections.add(projection);
+            }
+        }
+        extras.set("projections", projections);
+    }
+
+    /**
+     * Add the statistics of the plane to the "extras" of its tile.
+     */
+    public void addTileExtras(ObjectMapper mapper, int plane, ObjectNode extras) {
+        if (pixelType == FormatTools.FLOAT) {
+            extras.put("min", min[plane]);
+            extras.put("max", max[plane]);
+        } else {
+            extras.put("min", (long) min[plane]);
+            extras.put("max", (long) max[plane]);
+            ArrayNode histogram = mapper.createArrayNode();
+            for (int count : histograms[plane]) {
+                histogram.add(count);
+            }
+            extras.set("histogram", histogram);
+        }
+    }
+
+    private Accumulator accumulator(int plane) {
+        int index = zct[plane][1] + sizeC * zct[plane][2];
+        synchronized (accumulators) {
+            if (accumulators[index] == null) {
+                accumulators[index] = new Accumulator(sizeX * sizeY);
+            }
+            return accumulators[index];
+        }
+    }
+
+    private float[] decode(byte[] buf, int count) {
+        float[] values = scratch.get();
+        if (values == null || values.length < count) {
+            values = new float[count];
+            scratch.set(values);
+        }
+        int hi = littleEndian ? 1 : 0;
+        int lo = 1 - hi;
+        switch (pixelType) {
+            case FormatTools.UINT8:
+                for (int i = 0; i < count; i++) {
+                    values[i] = buf[i] & 0xff;
+                }
+                break;
+            case FormatTools.UINT16:
+                for (int i = 0; i < count; i++) {
+                    values[i] = (buf[2 * i + hi] & 0xff) << 8 | (buf[2 * i + lo] & 0xff);
+                }
+                break;
+            default:
+                for (int i = 0; i < count; i++) {
+                    int bits = littleEndian
+                            ? (buf[4 * i] & 0xff) | (buf[4 * i + 1] & 0xff) << 8
+                                | (buf[4 * i + 2] & 0xff) << 16 | buf[4 * i + 3] << 24
+                            : buf[4 * i] << 24 | (buf[4 * i + 1] & 0xff) << 16
+                                | (buf[4 * i + 2] & 0xff) << 8 | (buf[4 * i + 3] & 0xff);
+                    values[i] = Float.intBitsToFloat(bits);
+                }
+        }
+        return values;
+    }
+
+    /**
+     * Store the value as little-endian pixel i of buf.
+     */
+    private static void encode(int pixelType, float value, byte[] buf, int i) {
+        switch (pixelType) {
+            case FormatTools.UINT8:
+                buf[i] = (byte) (int) value;
+                break;
+            case FormatTools.UINT16:
+                int s = (int) value;
+                buf[2 * i] = (byte) s;
+                buf[2 * i + 1] = (byte) (s >>> 8);
+                break;
+            default:
+                int bits = Float.floatToRawIntBits(value);
+                buf[4 * i] = (byte) bits;
+                buf[4 * i + 1] = (byte) (bits >>> 8);
+                buf[4 * i + 2] = (byte) (bits >>> 16);
+                buf[4 * i + 3] = (byte) (bits >>> 24);
+        }
+    }
+
+    private void save(String name, int type, byte[] pixels) throws IOException, FormatException {
+        File file = new File(out, name);
+        file.getParentFile().mkdirs();
+        Files.deleteIfExists(file.toPath()); // the writer would otherwise append
+        OMEXMLMetadata meta;
+        try {
+            OMEXMLService xml = new ServiceFactory().getInstance(OMEXMLService.class);
+            meta = xml.createOMEXMLMetadata();
+        } catch (ServiceException | DependencyException exc) {
+            throw new FormatException("Error creating metadata service");
+        }
+        MetadataTools.populateMetadata(meta, 0, name, true, "XYZCT",
+                FormatTools.getPixelTypeString(type), sizeX, sizeY, 1, 1, 1, 1);
+        OMETiffWriter writer = new OMETiffWriter();
+        try {
+            writer.setMetadataRetrieve(meta);
+            writer.setId(file.getPath());
+            writer.saveBytes(0, pixels);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package spacetx;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bytes of planes which have been submitted for reading but not yet
+ * written, shared by all FOVs of a conversion so that their read-ahead
+ * together stays within a bound however many FOVs run at once.
+ *
+ * Acquiring never blocks, since the threads of the executor are needed to
+ * write the planes which free the budget. Instead, a FOV which is refused
+ * registers a callback which is run once bytes are released.
+ */
+public class ReadBudget {
+
+    /**
+     * Admits every read.
+     */
+    public static final ReadBudget UNLIMITED = new ReadBudget(Long.MAX_VALUE);
+
+    private final long max;
+
+    /**
+     * Guarded by this.
+     */
+    private long used = 0;
+
+    /**
+     * Callbacks of refused FOVs, each at most once. Guarded by this.
+     */
+    private final Set<Runnable> waiting = new LinkedHashSet<>();
+
+    /**
+     * @param max bytes which may be in flight at once
+     */
+    public ReadBudget(long max) {
+        this.max = max;
+    }
+
+    /**
+     * @param force admit even if over budget, e.g. when the caller has
+     *              nothing in flight and would otherwise never progress
+     * @param retry run once bytes have been released if refused
+     * @return whether the bytes were acquired
+     */
+    public synchronized boolean tryAcquire(long bytes, boolean force, Runnable retry) {
+        if (force || used + bytes <= max) {
+            used += bytes;
+            return true;
+        }
+        waiting.add(retry);
+        return false;
+    }
+
+    /**
+     * Release bytes and run the callbacks of all refused FOVs. Must not be
+     * called while holding a lock taken before {@link #tryAcquire}.
+     */
+    public void release(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        List<Runnable> retries;
+        synchronized (this) {
+            used -= bytes;
+            retries = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (Runnable retry : retries) {
+            retry.run();
+        }
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+}
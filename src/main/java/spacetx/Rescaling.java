@@ -0,0 +1,282 @@
+package spacetx;
+
+import loci.formats.FormatTools;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.model.enums.EnumerationException;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Converts pixels to another pixel type and optionally rescales their
+ * intensities, either from a fixed range or from a range given by two
+ * percentiles of each channel, to the full range of the output type
+ * ([0, 1] for floating point types).
+ *
+ * Without a range, values are only rounded and clamped to the output type.
+ * Planes are converted in chunks which are decoded into an array of doubles,
+ * transformed and encoded again, so that each step is a simple loop over
+ * primitives without branching on the pixel type per value.
+ */
+public class Rescaling {
+
+    public enum Mode {
+        none, fixed, percentile
+    }
+
+    /**
+     * Leaves pixels as they are.
+     */
+    public static final Rescaling NONE = new Rescaling(-1, Mode.none, 0, 0);
+
+    /**
+     * Number of values converted at a time.
+     */
+    private final static int CHUNK = 4096;
+
+    /**
+     * Output pixel type, or -1 to keep that of the input.
+     */
+    private final int pixelType;
+
+    private final Mode mode;
+
+    /**
+     * Fixed range or lower and upper percentile.
+     */
+    private final double low, high;
+
+    private Rescaling(int pixelType, Mode mode, double low, double high) {
+        this.pixelType = pixelType;
+        this.mode = mode;
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * @param pixelType name of the output pixel type, or null to keep that of the input
+     * @param range "MIN,MAX" to rescale a fixed range, "LOW%,HIGH%" to rescale
+     *              between two percentiles of each channel, or null
+     */
+    public static Rescaling parse(String pixelType, String range) throws Errors.UsageException {
+        int type = -1;
+        if (pixelType != null) {
+            try {
+                type = FormatTools.pixelTypeFromString(pixelType);
+            } catch (IllegalArgumentException e) {
+                Errors.badRescaling.raise(pixelType);
+            }
+            if (type == FormatTools.BIT) {
+                Errors.badRescaling.raise(pixelType);
+            }
+        }
+        if (range == null) {
+            return type < 0 ? NONE : new Rescaling(type, Mode.none, 0, 0);
+        }
+        String[] parts = range.split(",");
+        if (parts.length != 2) {
+            Errors.badRescaling.raise(range);
+        }
+        boolean percent = parts[0].endsWith("%") && parts[1].endsWith("%");
+        double low = 0, high = 0;
+        try {
+            low = Double.parseDouble(parts[0].replaceAll("%$", ""));
+            high = Double.parseDouble(parts[1].replaceAll("%$", ""));
+        } catch (NumberFormatException e) {
+            Errors.badRescaling.raise(range);
+        }
+        if (!(low < high) || (percent && (low < 0 || high > 100))
+                || (!percent && (parts[0].endsWith("%") || parts[1].endsWith("%")))) {
+            Errors.badRescaling.raise(range);
+        }
+        return new Rescaling(type, percent ? Mode.percentile : Mode.fixed, low, high);
+    }
+
+    public boolean isNone() {
+        return pixelType < 0 && mode == Mode.none;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the pixel type written for input of the given type
+     */
+    public int getPixelType(int input) {
+        return pixelType < 0 ? input : pixelType;
+    }
+
+    /**
+     * Set the pixel type of the single image of the metadata.
+     */
+    public void apply(OMEXMLMetadata single) throws EnumerationException {
+        if (pixelType < 0) {
+            return;
+        }
+        single.setPixelsType(PixelType.fromString(FormatTools.getPixelTypeString(pixelType)), 0);
+        single.setPixelsSignificantBits(new PositiveInteger(8 * FormatTools.getBytesPerPixel(pixelType)), 0);
+    }
+
+    /**
+     * @return the fixed range, or null if rescaling by percentiles or not at all
+     */
+    public double[] getRange() {
+        return mode == Mode.fixed ? new double[]{low, high} : null;
+    }
+
+    /**
+     * Estimate the range of a channel from a sample of its pixels.
+     *
+     * @param count number of values in the buffer
+     * @return the values at the lower and upper percentile
+     */
+    public double[] getRange(byte[] sample, int count, int inputType, boolean little) {
+        double[] values = new double[count];
+        decode(ByteBuffer.wrap(sample).order(order(little)), inputType, values, count);
+        Arrays.sort(values);
+        double min = values[(int) Math.floor(low / 100 * (count - 1))];
+        double max = values[(int) Math.ceil(high / 100 * (count - 1))];
+        return new double[]{min, max > min ? max : min + 1};
+    }
+
+    /**
+     * Convert the values of a plane, strip or tile.
+     *
+     * @param count number of values, i.e. pixels times samples
+     * @param range input values mapped to the full output range, or null to only clamp
+     * @param out receives count values of the output type in the same byte order
+     */
+    public void convert(byte[] in, int inputType, int count, double[] range, byte[] out, boolean little) {
+        int outputType = getPixelType(inputType);
+        boolean floating = FormatTools.isFloatingPoint(outputType);
+        double min = Double.NEGATIVE_INFINITY;
+        double max = Double.POSITIVE_INFINITY;
+        if (!floating) {
+            long[] limits = FormatTools.defaultMinMax(outputType);
+            min = limits[0];
+            max = limits[1];
+        } else if (range != null) {
+            min = 0;
+            max = 1;
+        }
+        double scale = range == null ? 1 : (max - min) / (range[1] - range[0]);
+        double offset = range == null ? 0 : min - range[0] * scale;
+        ByteBuffer src = ByteBuffer.wrap(in).order(order(little));
+        ByteBuffer dst = ByteBuffer.wrap(out).order(order(little));
+        double[] values = new double[Math.min(CHUNK, count)];
+        for (int done = 0; done < count; done += values.length) {
+            int n = Math.min(values.length, count - done);
+            decode(src, inputType, values, n);
+            if (floating) {
+                for (int i = 0; i < n; i++) {
+                    values[i] = Math.max(min, Math.min(max, values[i] * scale + offset));
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    values[i] = Math.max(min, Math.min(max, Math.rint(values[i] * scale + offset)));
+                }
+            }
+            encode(dst, outputType, values, n);
+        }
+    }
+
+    /**
+     * @return the settings, e.g. for cache keys
+     */
+    @Override
+    public String toString() {
+        return String.format("%s,%s,%s,%s", pixelType < 0 ? "input" : FormatTools.getPixelTypeString(pixelType),
+                mode, low, high);
+    }
+
+    private static ByteOrder order(boolean little) {
+        return little ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    }
+
+    /**
+     * Read the next n values from the buffer, advancing its position.
+     */
+    private static void decode(ByteBuffer src, int pixelType, double[] values, int n) {
+        switch (pixelType) {
+            case FormatTools.INT8:
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.get();
+                }
+                break;
+            case FormatTools.UINT8:
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.get() & 0xff;
+                }
+                break;
+            case FormatTools.INT16:
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.getShort();
+                }
+                break;
+            case FormatTools.UINT16:
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.getShort() & 0xffff;
+                }
+                break;
+            case FormatTools.INT32:
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.getInt();
+                }
+                break;
+            case FormatTools.UINT32:
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.getInt() & 0xffffffffL;
+                }
+                break;
+            case FormatTools.FLOAT:
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.getFloat();
+                }
+                break;
+            case FormatTools.DOUBLE:
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.getDouble();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("cannot convert " + FormatTools.getPixelTypeString(pixelType));
+        }
+    }
+
+    /**
+     * Write n values of the (already clamped) array, advancing the position of the buffer.
+     */
+    private static void encode(ByteBuffer dst, int pixelType, double[] values, int n) {
+        switch (FormatTools.getBytesPerPixel(pixelType)) {
+            case 1:
+                for (int i = 0; i < n; i++) {
+                    dst.put((byte) (long) values[i]);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    dst.putShort((short) (long) values[i]);
+                }
+                break;
+            case 4:
+                if (pixelType == FormatTools.FLOAT) {
+                    for (int i = 0; i < n; i++) {
+                        dst.putFloat((float) values[i]);
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        dst.putInt((int) (long) values[i]);
+                    }
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    dst.putDouble(values[i]);
+                }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package spacetx;
+
+import loci.formats.ome.OMEXMLMetadata;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Enumeration of the orders in which FOVs are handed to the executor.
+ *
+ * Plane tasks are queued first-in, first-out, so FOVs submitted earlier are
+ * also read earlier. FOV numbering never depends on the schedule.
+ */
+public enum Schedule {
+
+    /**
+     * Inputs in command-line order and the FOVs of each input in FOV order,
+     * e.g. by plate and well for screens.
+     */
+    given {
+
+        @Override
+        public Integer[] order(OMEXMLMetadata meta, int[] series) {
+            return identity(series.length);
+        }
+    },
+
+    /**
+     * Largest FOVs first, estimated from the metadata as plane count times
+     * plane size, so that no large FOV is started last and extends the total
+     * runtime. Inputs are ordered by their total size, which requires parsing
+     * all of them up-front.
+     */
+    largest {
+
+        @Override
+        public Integer[] order(OMEXMLMetadata meta, int[] series) {
+            Integer[] order = identity(series.length);
+            Arrays.sort(order, Comparator.comparingLong((Integer i) -> estimate(meta, series[i])).reversed());
+            return order;
+        }
+    };
+
+    /**
+     * @param meta of the input
+     * @param series to be converted, one per FOV, in FOV order
+     * @return indices into series in the order they should be submitted
+     */
+    public abstract Integer[] order(OMEXMLMetadata meta, int[] series);
+
+    /**
+     * @return bytes of pixels in the series according to the metadata
+     */
+    public static long estimate(OMEXMLMetadata meta, int series) {
+        long planes = (long) meta.getPixelsSizeZ(series).getValue()
+                * meta.getPixelsSizeC(series).getValue() * meta.getPixelsSizeT(series).getValue();
+        if (meta.getChannelCount(series) > 0) {
+            planes /= Math.max(1, meta.getPixelsSizeC(series).getValue() / meta.getChannelCount(series));
+        }
+        return planes * Planner.getPlaneBytes(meta, series);
+    }
+
+    private static Integer[] identity(int size) {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+}
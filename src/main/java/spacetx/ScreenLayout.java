@@ -0,0 +1,121 @@
+package spacetx;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.model.primitives.NonNegativeInteger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps every field of every well of every plate in a screen to a FOV.
+ *
+ * Fields are ordered by plate, well row, well column and then by their
+ * order within the well, so that the same screen is always converted to
+ * the same FOV indices regardless of the order in which the reader lists
+ * its images. Images which are not part of any well follow in series order.
+ */
+public class ScreenLayout {
+
+    private static class Field {
+
+        final int series, plate, row, column, field;
+
+        Field(int series, int plate, int row, int column, int field) {
+            this.series = series;
+            this.plate = plate;
+            this.row = row;
+            this.column = column;
+            this.field = field;
+        }
+    }
+
+    private final OMEXMLMetadata meta;
+
+    private final List<Field> fields = new ArrayList<>();
+
+    /**
+     * By series.
+     */
+    private final Map<Integer, Field> bySeries = new HashMap<>();
+
+    public ScreenLayout(OMEXMLMetadata meta, int seriesCount) {
+        this.meta = meta;
+        Map<String, Integer> images = new HashMap<>();
+        for (int i = 0; i < meta.getImageCount(); i++) {
+            images.put(meta.getImageID(i), i);
+        }
+        for (int p = 0; p < meta.getPlateCount(); p++) {
+            for (int w = 0; w < meta.getWellCount(p); w++) {
+                int row = value(meta.getWellRow(p, w));
+                int column = value(meta.getWellColumn(p, w));
+                for (int s = 0; s < meta.getWellSampleCount(p, w); s++) {
+                    Integer series = images.get(meta.getWellSampleImageRef(p, w, s));
+                    if (series == null) {
+                        series = value(meta.getWellSampleIndex(p, w, s));
+                    }
+                    if (series >= 0 && series < seriesCount && !bySeries.containsKey(series)) {
+                        Field field = new Field(series, p, row, column, s);
+                        fields.add(field);
+                        bySeries.put(series, field);
+                    }
+                }
+            }
+        }
+        fields.sort(Comparator.<Field>comparingInt(f -> f.plate)
+                .thenComparingInt(f -> f.row)
+                .thenComparingInt(f -> f.column)
+                .thenComparingInt(f -> f.field));
+        for (int series = 0; series < seriesCount; series++) {
+            if (!bySeries.containsKey(series)) {
+                fields.add(new Field(series, -1, -1, -1, -1));
+            }
+        }
+    }
+
+    private static int value(NonNegativeInteger i) {
+        return i == null ? -1 : i.getValue();
+    }
+
+    /**
+     * @return the series of each FOV in order
+     */
+    public int[] getSeries() {
+        int[] series = new int[fields.size()];
+        for (int i = 0; i < series.length; i++) {
+            series[i] = fields.get(i).series;
+        }
+        return series;
+    }
+
+    /**
+     * Record the plate, well and field of the series in the "extras" of its FOV json.
+     */
+    public void addExtras(int series, ObjectNode extras) {
+        Field field = bySeries.get(series);
+        if (field == null) {
+            return;
+        }
+        String plate = meta.getPlateName(field.plate);
+        extras.put("plate", plate == null ? meta.getPlateID(field.plate) : plate);
+        extras.put("well", well(field.row, field.column));
+        extras.put("field", field.field);
+    }
+
+    /**
+     * @return e.g. "B03" for row 1 and column 2 (zero-based), or "AA01" past row Z.
+     */
+    static String well(int row, int column) {
+        StringBuilder sb = new StringBuilder();
+        for (int r = row; r >= 0; r = r / 26 - 1) {
+            sb.insert(0, (char) ('A' + r % 26));
+        }
+        if (column < 9) {
+            sb.append('0');
+        }
+        return sb.append(column + 1).toString();
+    }
+}
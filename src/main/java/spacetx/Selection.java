@@ -0,0 +1,205 @@
+package spacetx;
+
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.meta.OMEXMLMetadataRoot;
+import ome.xml.model.BinData;
+import ome.xml.model.Channel;
+import ome.xml.model.Pixels;
+import ome.xml.model.Plane;
+import ome.xml.model.TiffData;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Region of interest and subset of Z, C and T indices to convert.
+ *
+ * Indices are given as comma-separated lists of single indices and
+ * inclusive ranges, e.g. "0-2,5". The selected indices of each dimension
+ * are renumbered from zero in the output so that the FOV json and the
+ * OME-XML describe a consistent, smaller image.
+ */
+public class Selection {
+
+    /**
+     * Selects every pixel of every plane.
+     */
+    public static final Selection ALL = new Selection(null, null, null, null);
+
+    /**
+     * x, y, width and height, or null for the whole plane.
+     */
+    private final int[] crop;
+
+    private final String z, c, t;
+
+    private Selection(int[] crop, String z, String c, String t) {
+        this.crop = crop;
+        this.z = z;
+        this.c = c;
+        this.t = t;
+    }
+
+    /**
+     * Check the syntax of each option. Whether the indices exist can only
+     * be checked per FOV.
+     *
+     * @param crop "x,y,w,h" or null
+     * @param z indices or null for all
+     * @param c indices or null for all
+     * @param t indices or null for all
+     */
+    public static Selection parse(String crop, String z, String c, String t) throws Errors.UsageException {
+        int[] rect = null;
+        if (crop != null) {
+            String[] parts = crop.split(",");
+            if (parts.length != 4) {
+                Errors.badSelection.raise(crop);
+            }
+            rect = new int[4];
+            try {
+                for (int i = 0; i < 4; i++) {
+                    rect[i] = Integer.parseInt(parts[i].trim());
+                }
+            } catch (NumberFormatException e) {
+                Errors.badSelection.raise(crop);
+            }
+            if (rect[0] < 0 || rect[1] < 0 || rect[2] < 1 || rect[3] < 1) {
+                Errors.badSelection.raise(crop);
+            }
+        }
+        for (String spec : new String[]{z, c, t}) {
+            if (spec != null) {
+                ranges(spec);
+            }
+        }
+        return new Selection(rect, z, c, t);
+    }
+
+    public boolean isAll() {
+        return crop == null && z == null && c == null && t == null;
+    }
+
+    /**
+     * @return x, y, width and height of the region within planes of the given size.
+     */
+    public int[] getRegion(int sizeX, int sizeY) throws Errors.UsageException {
+        if (crop == null) {
+            return new int[]{0, 0, sizeX, sizeY};
+        }
+        if (crop[0] + crop[2] > sizeX || crop[1] + crop[3] > sizeY) {
+            Errors.badSelection.raise(String.format("crop %d,%d,%d,%d outside of %dx%d plane",
+                    crop[0], crop[1], crop[2], crop[3], sizeX, sizeY));
+        }
+        return crop.clone();
+    }
+
+    public int[] getZ(int sizeZ) throws Errors.UsageException {
+        return z == null ? range(sizeZ) : indices(z, sizeZ);
+    }
+
+    public int[] getC(int sizeC) throws Errors.UsageException {
+        return c == null ? range(sizeC) : indices(c, sizeC);
+    }
+
+    public int[] getT(int sizeT) throws Errors.UsageException {
+        return t == null ? range(sizeT) : indices(t, sizeT);
+    }
+
+    private static int[] range(int size) {
+        int[] all = new int[size];
+        for (int i = 0; i < size; i++) {
+            all[i] = i;
+        }
+        return all;
+    }
+
+    /**
+     * @return the sorted, distinct indices of the spec, each less than size.
+     */
+    static int[] indices(String spec, int size) throws Errors.UsageException {
+        BitSet selected = new BitSet(size);
+        for (int[] range : ranges(spec)) {
+            if (range[1] >= size) {
+                Errors.badSelection.raise(String.format("%s exceeds size %d", spec, size));
+            }
+            selected.set(range[0], range[1] + 1);
+        }
+        return selected.stream().toArray();
+    }
+
+    /**
+     * @return the inclusive first and last index of each part of the spec
+     */
+    private static int[][] ranges(String spec) throws Errors.UsageException {
+        String[] parts = spec.split(",");
+        int[][] ranges = new int[parts.length][];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                String[] bounds = parts[i].trim().split("-", 2);
+                int first = Integer.parseInt(bounds[0].trim());
+                int last = bounds.length == 1 ? first : Integer.parseInt(bounds[1].trim());
+                if (first < 0 || last < first) {
+                    Errors.badSelection.raise(spec);
+                }
+                ranges[i] = new int[]{first, last};
+            }
+        } catch (NumberFormatException e) {
+            Errors.badSelection.raise(spec);
+        }
+        return ranges;
+    }
+
+    /**
+     * Reduce the single image of the metadata to the selection: resize the
+     * pixels, drop unselected channels and planes, renumber the remaining
+     * planes, and drop any TiffData or BinData which the writers regenerate.
+     */
+    public static void apply(OMEXMLMetadata single, int[] region, int[] zs, int[] cs, int[] ts) {
+        Pixels pixels = ((OMEXMLMetadataRoot) single.getRoot()).getImage(0).getPixels();
+        List<Channel> channels = pixels.copyChannelList();
+        int samples = 1;
+        if (!channels.isEmpty()) {
+            samples = single.getPixelsSizeC(0).getValue() / channels.size();
+            for (int i = 0; i < channels.size(); i++) {
+                if (Arrays.binarySearch(cs, i) < 0) {
+                    pixels.removeChannel(channels.get(i));
+                }
+            }
+        }
+        for (Plane plane : pixels.copyPlaneList()) {
+            int pz = index(zs, plane.getTheZ());
+            int pc = index(cs, plane.getTheC());
+            int pt = index(ts, plane.getTheT());
+            if (pz < 0 || pc < 0 || pt < 0) {
+                pixels.removePlane(plane);
+            } else {
+                plane.setTheZ(new NonNegativeInteger(pz));
+                plane.setTheC(new NonNegativeInteger(pc));
+                plane.setTheT(new NonNegativeInteger(pt));
+            }
+        }
+        for (TiffData tiffData : pixels.copyTiffDataList()) {
+            pixels.removeTiffData(tiffData);
+        }
+        for (BinData binData : pixels.copyBinDataList()) {
+            pixels.removeBinData(binData);
+        }
+        pixels.setSizeX(new PositiveInteger(region[2]));
+        pixels.setSizeY(new PositiveInteger(region[3]));
+        pixels.setSizeZ(new PositiveInteger(zs.length));
+        pixels.setSizeC(new PositiveInteger(cs.length * samples));
+        pixels.setSizeT(new PositiveInteger(ts.length));
+    }
+
+    /**
+     * @return the new index of the old one, or -1 if not selected.
+     */
+    private static int index(int[] selected, NonNegativeInteger old) {
+        int i = Arrays.binarySearch(selected, old == null ? 0 : old.getValue());
+        return i < 0 ? -1 : i;
+    }
+}
@@ -0,0 +1,215 @@
+package spacetx;
+
+import java.io.PrintStream;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks the tasks of a conversion so that their results are collected in
+ * the order in which they complete and, on the first failure, all other
+ * tasks are cancelled rather than left running.
+ *
+ * Tasks may be added while others are running, e.g. each input task adds
+ * a task per FOV before completing itself, so the future returned by
+ * {@link #seal()} only completes once no task is outstanding. Results are
+ * collected as each task completes rather than by a waiting thread so that
+ * the conversion can be driven entirely by the caller's executor.
+ */
+public class Tasks {
+
+    private static class Task {
+
+        final String name;
+        final CompletableFuture<Integer> future;
+        final Runnable cancel;
+
+        /**
+         * Whether the future completes only once the task has returned, even if cancelled.
+         */
+        final boolean runsToCompletion;
+
+        Task(String name, CompletableFuture<Integer> future, Runnable cancel, boolean runsToCompletion) {
+            this.name = name;
+            this.future = future;
+            this.cancel = cancel;
+            this.runsToCompletion = runsToCompletion;
+        }
+    }
+
+    /**
+     * Every task in the order it was added, for the summary.
+     */
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Tasks which have not completed, plus one until sealed.
+     */
+    private final AtomicInteger outstanding = new AtomicInteger(1);
+
+    private final AtomicInteger sum = new AtomicInteger();
+
+    private final AtomicReference<Throwable> first = new AtomicReference<>();
+
+    private final CompletableFuture<Integer> all = new CompletableFuture<>();
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Run the callable on the executor as a new task. The callable is run
+     * even if cancelled before it starts so that it can release resources,
+     * and should check {@link #isCancelled()} before starting any work. Its
+     * future is not cancelled but completes once the callable has returned,
+     * so that the conversion does not end while it is still cleaning up.
+     */
+    public void submit(String name, Executor executor, Callable<Integer> callable) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        add(new Task(name, future, null, true));
+        executor.execute(() -> {
+            try {
+                future.complete(callable.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+    }
+
+    /**
+     * Track a task started elsewhere.
+     *
+     * @param cancel stops the task and cleans up after it, or null to
+     *               simply cancel the future
+     */
+    public void add(String name, CompletableFuture<Integer> future, Runnable cancel) {
+        add(new Task(name, future, cancel, false));
+    }
+
+    private void add(Task task) {
+        outstanding.incrementAndGet();
+        tasks.add(task);
+        task.future.whenComplete((rv, t) -> completed(task));
+        if (cancelled) {
+            cancel(task);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Declare that no further tasks will be added other than by running
+     * tasks. Must be called exactly once.
+     *
+     * @return completed with the sum of the return values of all tasks,
+     *         including those added meanwhile, or exceptionally with the
+     *         cause of the first failure once all other tasks were cancelled
+     */
+    public CompletableFuture<Integer> seal() {
+        finished();
+        return all;
+    }
+
+    /**
+     * Collect the result of a task. On the first failure all other tasks are cancelled.
+     */
+    private void completed(Task task) {
+        Throwable error = error(task);
+        if (error == null) {
+            sum.addAndGet(task.future.getNow(0));
+        } else if (!(error instanceof CancellationException)) {
+            fail(error);
+        }
+        finished();
+    }
+
+    private void finished() {
+        if (outstanding.decrementAndGet() == 0) {
+            Throwable error = first.get();
+            if (error == null) {
+                all.complete(sum.get());
+            } else {
+                all.completeExceptionally(error);
+            }
+        }
+    }
+
+    /**
+     * Fail the whole conversion with the given cause, unless it already
+     * failed, and cancel every task.
+     */
+    public void fail(Throwable cause) {
+        if (first.compareAndSet(null, cause)) {
+            cancelAll();
+        }
+    }
+
+    /**
+     * Cancel every task which has not yet completed, as well as any added later.
+     */
+    public void cancelAll() {
+        cancelled = true;
+        for (Task task : tasks) {
+            cancel(task);
+        }
+    }
+
+    private static void cancel(Task task) {
+        if (task.future.isDone() || task.runsToCompletion) {
+            return;
+        }
+        if (task.cancel != null) {
+            task.cancel.run();
+        }
+        task.future.cancel(false);
+    }
+
+    /**
+     * @return the unwrapped cause of failure, or null if the task succeeded or is still running
+     */
+    private static Throwable error(Task task) {
+        if (!task.future.isCompletedExceptionally()) {
+            return null;
+        }
+        try {
+            task.future.join();
+            return null;
+        } catch (CancellationException e) {
+            return e;
+        } catch (CompletionException e) {
+            return e.getCause() == null ? e : e.getCause();
+        }
+    }
+
+    /**
+     * Print each failed task with its error, and the number of tasks which
+     * succeeded or were cancelled.
+     */
+    public void report(PrintStream out) {
+        int succeeded = 0;
+        int cancelled = 0;
+        int failed = 0;
+        for (Task task : tasks) {
+            Throwable error = error(task);
+            if (!task.future.isDone()) {
+                cancelled++; // still winding down
+            } else if (error == null) {
+                succeeded++;
+            } else if (error instanceof CancellationException) {
+                cancelled++;
+            } else {
+                failed++;
+                out.println(String.format("FAILED %s: %s", task.name, error.getMessage() == null
+                        ? error.getClass().getSimpleName() : error.getMessage()));
+            }
+        }
+        out.println(String.format("%d task(s) failed, %d succeeded, %d cancelled",
+                failed, succeeded, cancelled));
+    }
+}
@@ -0,0 +1,193 @@
+package spacetx;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent, content-addressed store of converted planes so that repeated
+ * runs over the same input, e.g. with a different -f offset or naming
+ * strategy, need not decode and convert the pixels again.
+ *
+ * The pixels of each plane, as passed to the writer, are stored once under
+ * their SHA-256 in "blobs". Entries in "keys" map the identity of the input
+ * (the path, size and modification time of every file Bio-Formats used),
+ * the series, the plane index and all options which affect the pixels to
+ * that hash. Only pixels are stored since every OME-TIFF embeds the UUIDs
+ * and companion file name of the run which wrote it.
+ *
+ * As with {@link MetadataCache}, failures to store are logged rather than
+ * thrown since the cache is only an optimization.
+ */
+public class TileCache {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(TileCache.class);
+
+    /**
+     * Bump whenever the layout of blobs or the contents of keys change.
+     */
+    private final static String VERSION = "1";
+
+    private final File keys, blobs;
+
+    private final String settings;
+
+    /**
+     * Identity of each input, computed once per run.
+     */
+    private final Map<String, String> identities = new ConcurrentHashMap<>();
+
+    /**
+     * @param dir directory holding the cache. Created if necessary.
+     * @param settings reader format, options and flags which affect the pixels read.
+     */
+    public TileCache(File dir, String settings) {
+        this.keys = new File(dir, "keys");
+        this.blobs = new File(dir, "blobs");
+        this.settings = settings;
+    }
+
+    /**
+     * @param usedFiles as returned by the reader of the input
+     * @return a hash of the state of every file of the input
+     */
+    public String identify(String input, String[] usedFiles) {
+        return identities.computeIfAbsent(input, k -> {
+            String[] sorted = usedFiles.clone();
+            Arrays.sort(sorted);
+            StringBuilder sb = new StringBuilder(VERSION).append('\n').append(settings);
+            for (String path : sorted) {
+                File file = new File(path).getAbsoluteFile();
+                sb.append('\n').append(file.getPath())
+                  .append('\t').append(file.length())
+                  .append('\t').append(file.lastModified());
+            }
+            return Hashing.sha256().hashString(sb, StandardCharsets.UTF_8).toString();
+        });
+    }
+
+    /**
+     * @param options every setting which affects the pixels of the converted plane
+     * @return the key of a single plane
+     */
+    public String key(String identity, int series, int plane, String options) {
+        String key = String.join("\n", identity, String.valueOf(series), String.valueOf(plane), options);
+        return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * @param size expected number of bytes of the plane
+     * @return the hash of the cached pixels, or null if there is no complete entry
+     */
+    public HashCode lookup(String key, long size) {
+        File entry = new File(keys, key + ".key");
+        if (!entry.exists()) {
+            return null;
+        }
+        try {
+            HashCode hash = HashCode.fromString(
+                    new String(Files.readAllBytes(entry.toPath()), StandardCharsets.UTF_8).trim());
+            return blob(hash).length() == size ? hash : null;
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warn("ignoring unreadable tile cache entry {}", entry, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the file holding the pixels with the given hash
+     */
+    public File blob(HashCode hash) {
+        String hex = hash.toString();
+        return new File(new File(blobs, hex.substring(0, 2)), hex + ".pixels");
+    }
+
+    /**
+     * Fill the buffer with the cached pixels.
+     *
+     * @return false if they could not be read, e.g. because the entry was removed
+     */
+    public boolean load(HashCode hash, byte[] buf) {
+        try (RandomAccessFile file = new RandomAccessFile(blob(hash), "r")) {
+            file.readFully(buf);
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("failed to read {} from the tile cache", hash, e);
+            return false;
+        }
+    }
+
+    /**
+     * Store the pixels of a plane held in memory.
+     */
+    public void store(String key, HashCode hash, byte[] pixels) {
+        File blob = blob(hash);
+        try {
+            if (blob.length() != pixels.length) {
+                File tmp = temporary(blob);
+                Files.write(tmp.toPath(), pixels);
+                replace(tmp, blob);
+            }
+            link(key, hash);
+        } catch (IOException e) {
+            LOGGER.warn("failed to cache plane {} in {}", hash, blob, e);
+        }
+    }
+
+    /**
+     * Store the pixels of a plane which has been written to a region of a file.
+     */
+    public void store(String key, HashCode hash, File file, long offset, long size) {
+        File blob = blob(hash);
+        try {
+            if (blob.length() != size) {
+                File tmp = temporary(blob);
+                try (FileChannel src = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                     FileChannel dst = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                    long done = 0;
+                    while (done < size) {
+                        long n = src.transferTo(offset + done, size - done, dst);
+                        if (n <= 0) {
+                            throw new IOException(String.format("%s ends before %d", file, offset + size));
+                        }
+                        done += n;
+                    }
+                }
+                replace(tmp, blob);
+            }
+            link(key, hash);
+        } catch (IOException e) {
+            LOGGER.warn("failed to cache plane {} in {}", hash, blob, e);
+        }
+    }
+
+    private void link(String key, HashCode hash) throws IOException {
+        File entry = new File(keys, key + ".key");
+        File tmp = temporary(entry);
+        Files.write(tmp.toPath(), hash.toString().getBytes(StandardCharsets.UTF_8));
+        replace(tmp, entry);
+    }
+
+    private static File temporary(File target) throws IOException {
+        target.getParentFile().mkdirs();
+        return File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+    }
+
+    private static void replace(File tmp, File target) throws IOException {
+        Files.move(tmp.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
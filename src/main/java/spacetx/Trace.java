@@ -0,0 +1,191 @@
+package spacetx;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records the start and end of each conversion phase per FOV and thread
+ * and writes them as Chrome trace-event JSON which can be loaded into
+ * chrome://tracing or https://ui.perfetto.dev
+ *
+ * Each FOV is shown as a separate process with one row per thread. Phases
+ * which do not belong to a single FOV (e.g. parsing an HCS input or
+ * writing the experiment) are shown under "spacetx".
+ *
+ * If {@link Metrics} are set, the duration of every phase is also
+ * reported to them, whether or not a trace file is written.
+ */
+public class Trace {
+
+    /**
+     * Disabled instance which records nothing.
+     */
+    public static final Trace NONE = new Trace(null);
+
+    /**
+     * Used when a phase does not belong to a single FOV.
+     */
+    public static final int NO_FOV = -1;
+
+    public enum Phase {
+        setId,
+        populatePixels,
+        read,
+        write,
+        hash,
+        json,
+        project,
+        experiment
+    }
+
+    private static class Event {
+
+        final Phase phase;
+        final int fov;
+        final String detail;
+        final long tid;
+        final long start;
+        final long stop;
+
+        Event(Phase phase, int fov, String detail, long start, long stop) {
+            this.phase = phase;
+            this.fov = fov;
+            this.detail = detail;
+            this.tid = Thread.currentThread().getId();
+            this.start = start;
+            this.stop = stop;
+        }
+    }
+
+    private final File file;
+
+    private final long origin = System.nanoTime();
+
+    private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+
+    private final Map<Long, String> threads = new ConcurrentHashMap<>();
+
+    private Metrics metrics = Metrics.NONE;
+
+    /**
+     * @param file location of the trace file or null to disable tracing.
+     */
+    public Trace(File file) {
+        this.file = file;
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * Report the duration of every phase to the metrics. Must be called
+     * before any phase starts.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return timestamp to pass to {@link #end(Phase, int, String, long)}
+     */
+    public long start() {
+        return file == null && !metrics.isEnabled() ? 0 : System.nanoTime();
+    }
+
+    public void end(Phase phase, int fov, long start) {
+        end(phase, fov, null, start);
+    }
+
+    /**
+     * Record a phase which began at the given {@link #start()}.
+     *
+     * @param detail additional information shown in the viewer. May be null.
+     */
+    public void end(Phase phase, int fov, String detail, long start) {
+        if (file == null && !metrics.isEnabled()) {
+            return;
+        }
+        long stop = System.nanoTime();
+        metrics.observe(phase, stop - start);
+        if (file == null) {
+            return;
+        }
+        events.add(new Event(phase, fov, detail, start, stop));
+        Thread thread = Thread.currentThread();
+        threads.putIfAbsent(thread.getId(), thread.getName());
+    }
+
+    /**
+     * Write all events recorded so far. Does nothing if disabled.
+     */
+    public void write() throws IOException {
+        if (file == null) {
+            return;
+        }
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode root = mapper.createObjectNode();
+        ArrayNode list = mapper.createArrayNode();
+        Set<Integer> processes = new TreeSet<>();
+        for (Event event : events) {
+            ObjectNode node = mapper.createObjectNode();
+            node.put("name", event.phase.name());
+            node.put("cat", "spacetx");
+            node.put("ph", "X");
+            node.put("ts", (event.start - origin) / 1000.0);
+            node.put("dur", (event.stop - event.start) / 1000.0);
+            node.put("pid", event.fov + 1);
+            node.put("tid", event.tid);
+            if (event.detail != null) {
+                ObjectNode args = mapper.createObjectNode();
+                args.put("detail", event.detail);
+                node.set("args", args);
+            }
+            list.add(node);
+            processes.add(event.fov);
+        }
+        for (Integer fov : processes) {
+            String name = fov == NO_FOV ? "spacetx" : String.format("fov %03d", fov);
+            list.add(metadata(mapper, "process_name", fov + 1, null, name));
+            list.add(metadata(mapper, "process_sort_index", fov + 1, null, fov + 1));
+            for (Map.Entry<Long, String> thread : threads.entrySet()) {
+                list.add(metadata(mapper, "thread_name", fov + 1, thread.getKey(), thread.getValue()));
+            }
+        }
+        root.set("traceEvents", list);
+        root.put("displayTimeUnit", "ms");
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        mapper.writer().writeValue(file, root);
+    }
+
+    private static ObjectNode metadata(ObjectMapper mapper, String name, int pid, Long tid, Object value) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("name", name);
+        node.put("ph", "M");
+        node.put("pid", pid);
+        if (tid != null) {
+            node.put("tid", tid);
+        }
+        ObjectNode args = mapper.createObjectNode();
+        if (value instanceof Integer) {
+            args.put("sort_index", (Integer) value);
+        } else {
+            args.put("name", String.valueOf(value));
+        }
+        node.set("args", args);
+        return node;
+    }
+}
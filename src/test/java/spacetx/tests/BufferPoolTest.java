@@ -0,0 +1,77 @@
+package spacetx.tests;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import spacetx.BufferPool;
+
+/**
+ * Leasing and releasing plane buffers.
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(2);
+        byte[] buf = pool.lease(16);
+        Assertions.assertEquals(16, buf.length);
+        pool.release(buf);
+        Assertions.assertSame(buf, pool.lease(16));
+        Assertions.assertNotSame(buf, pool.lease(16));
+        Assertions.assertEquals(32, pool.lease(32).length);
+    }
+
+    @Test
+    public void testRetainedPerSize() {
+        BufferPool pool = new BufferPool(1);
+        byte[] first = pool.lease(16);
+        byte[] second = pool.lease(16);
+        pool.release(first);
+        pool.release(second);
+        Assertions.assertEquals(16, pool.getIdleBytes());
+        Assertions.assertSame(first, pool.lease(16));
+    }
+
+    @Test
+    public void testIdleBudgetEvictsOldest() {
+        BufferPool pool = new BufferPool(4, 48);
+        byte[] oldest = pool.lease(32);
+        byte[] small = pool.lease(8);
+        byte[] newest = pool.lease(16);
+        pool.release(oldest);
+        pool.release(small);
+        pool.release(newest);
+        Assertions.assertEquals(24, pool.getIdleBytes());
+        Assertions.assertNotSame(oldest, pool.lease(32));
+        Assertions.assertSame(small, pool.lease(8));
+        Assertions.assertSame(newest, pool.lease(16));
+        Assertions.assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test
+    public void testDoubleRelease() {
+        BufferPool pool = new BufferPool(2);
+        byte[] buf = pool.lease(16);
+        pool.release(buf);
+        Assertions.assertThrows(IllegalStateException.class, () -> pool.release(buf));
+    }
+
+    @Test
+    public void testForeignRelease() {
+        BufferPool pool = new BufferPool(2);
+        Assertions.assertThrows(IllegalStateException.class, () -> pool.release(new byte[16]));
+        byte[] other = new BufferPool(2).lease(16);
+        Assertions.assertThrows(IllegalStateException.class, () -> pool.release(other));
+    }
+
+    @Test
+    public void testLeaks() {
+        BufferPool pool = new BufferPool(2);
+        byte[] released = pool.lease(16);
+        pool.lease(16);
+        pool.lease(32);
+        pool.release(released);
+        Assertions.assertEquals(2, pool.getLeased());
+        Assertions.assertEquals(2, pool.close());
+        Assertions.assertEquals(0, pool.getIdleBytes());
+    }
+}
@@ -0,0 +1,118 @@
+package spacetx.tests;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import spacetx.Follower;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drive a {@link Follower} poll by poll with a fake clock rather than
+ * racing it against files written by another thread.
+ */
+public class FollowerTest {
+
+    private final static long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Acquisition directory under $TMPDIR
+     */
+    private Path dir;
+
+    private long now;
+
+    private List<String> found;
+
+    /**
+     * Instance under test, with a settle time of 1s and an idle time of 5s.
+     */
+    private Follower follower;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("FollowerTest");
+        now = 0;
+        found = new ArrayList<>();
+        follower = new Follower(Collections.singletonList(dir.toString()), "*.fake",
+                1000, 5000, found::add, () -> now);
+    }
+
+    @Test
+    public void testSettledFileIsHandedOn() throws Exception {
+        Path file = Files.write(dir.resolve("a.fake"), new byte[]{});
+        follower.poll();
+        Assertions.assertTrue(found.isEmpty());
+        now += SECOND;
+        follower.poll();
+        Assertions.assertEquals(Collections.singletonList(file.toString()), found);
+        now += SECOND;
+        follower.poll();
+        Assertions.assertEquals(1, found.size());
+    }
+
+    @Test
+    public void testGrowingFileIsNotHandedOn() throws Exception {
+        Path file = Files.write(dir.resolve("a.fake"), new byte[]{});
+        follower.poll();
+        now += SECOND;
+        Files.write(file, new byte[]{1}, StandardOpenOption.APPEND);
+        follower.poll();
+        Assertions.assertTrue(found.isEmpty());
+        now += SECOND;
+        follower.poll();
+        Assertions.assertEquals(1, found.size());
+    }
+
+    @Test
+    public void testFilesInSubdirectoriesInNameOrder() throws Exception {
+        Files.createDirectories(dir.resolve("round2"));
+        Path second = Files.write(dir.resolve("round2/b.fake"), new byte[]{});
+        Path first = Files.write(dir.resolve("a.fake"), new byte[]{});
+        Files.write(dir.resolve("ignored.txt"), new byte[]{});
+        follower.poll();
+        now += SECOND;
+        follower.poll();
+        Assertions.assertEquals(Arrays.asList(first.toString(), second.toString()), found);
+    }
+
+    @Test
+    public void testEndsAfterIdle() throws Exception {
+        Files.write(dir.resolve("a.fake"), new byte[]{});
+        follower.poll();
+        now += SECOND;
+        follower.poll();
+        now += 4 * SECOND;
+        follower.poll();
+        Assertions.assertFalse(follower.getDone().isDone());
+        now += SECOND;
+        follower.poll();
+        Assertions.assertEquals(0, follower.getDone().get().intValue());
+    }
+
+    @Test
+    public void testRemovedFileDoesNotPreventEnd() throws Exception {
+        Path file = Files.write(dir.resolve("a.fake"), new byte[]{});
+        follower.poll();
+        Files.delete(file);
+        now += SECOND;
+        follower.poll();
+        now += 5 * SECOND;
+        follower.poll();
+        Assertions.assertTrue(follower.getDone().isDone());
+        Assertions.assertTrue(found.isEmpty());
+    }
+
+    @AfterEach
+    public void teardown() {
+        Helpers.delete(dir);
+    }
+}
@@ -118,6 +118,30 @@ public class Helpers {
         return found;
     }
 
+    /**
+     * Recursively delete a file or directory, ignoring failures.
+     */
+    public static void delete(Path location) {
+        try {
+            Files.walkFileTree(location, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                    Files.deleteIfExists(path);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path path, IOException exc) throws IOException {
+                    Files.deleteIfExists(path);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // pass
+        }
+    }
+
     public static int grep(String glob, String text, Path dir) throws IOException {
         List<Path> paths = find(glob, dir);
         Assertions.assertEquals(1, paths.size(), paths.toString());
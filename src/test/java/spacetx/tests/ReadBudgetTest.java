@@ -0,0 +1,56 @@
+package spacetx.tests;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import spacetx.ReadBudget;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sharing the bytes read ahead between FOVs.
+ */
+public class ReadBudgetTest {
+
+    @Test
+    public void testWithinBudget() {
+        ReadBudget budget = new ReadBudget(32);
+        AtomicInteger retried = new AtomicInteger();
+        Assertions.assertTrue(budget.tryAcquire(16, false, retried::incrementAndGet));
+        Assertions.assertTrue(budget.tryAcquire(16, false, retried::incrementAndGet));
+        Assertions.assertFalse(budget.tryAcquire(1, false, retried::incrementAndGet));
+        Assertions.assertEquals(32, budget.getUsed());
+        Assertions.assertEquals(0, retried.get());
+    }
+
+    @Test
+    public void testRetryOnRelease() {
+        ReadBudget budget = new ReadBudget(16);
+        AtomicInteger retried = new AtomicInteger();
+        Runnable retry = retried::incrementAndGet;
+        Assertions.assertTrue(budget.tryAcquire(16, false, retry));
+        // Refused twice, but retried once
+        Assertions.assertFalse(budget.tryAcquire(16, false, retry));
+        Assertions.assertFalse(budget.tryAcquire(16, false, retry));
+        budget.release(16);
+        Assertions.assertEquals(1, retried.get());
+        Assertions.assertEquals(0, budget.getUsed());
+        budget.release(0);
+        Assertions.assertEquals(1, retried.get());
+    }
+
+    @Test
+    public void testForce() {
+        // A plane larger than the budget is still admitted when nothing else is in flight
+        ReadBudget budget = new ReadBudget(16);
+        Assertions.assertTrue(budget.tryAcquire(64, true, () -> { }));
+        Assertions.assertFalse(budget.tryAcquire(1, false, () -> { }));
+        budget.release(64);
+        Assertions.assertTrue(budget.tryAcquire(16, false, () -> { }));
+    }
+
+    @Test
+    public void testUnlimited() {
+        Assertions.assertTrue(ReadBudget.UNLIMITED.tryAcquire(Integer.MAX_VALUE, false, () -> { }));
+        ReadBudget.UNLIMITED.release(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,192 @@
+package spacetx.tests;
+
+import loci.common.LogbackTools;
+import spacetx.FOVTool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static spacetx.tests.Helpers.*;
+
+/**
+ * Runs {@link FOVTool#doMain(String[])} on synthetic .fake datasets over a
+ * grid of FOV count, plane size, Z/C/T, HCS field count and threads, and
+ * appends wall time, throughput, peak heap and GC time of each run to a csv
+ * so that scaling can be compared between releases.
+ *
+ * Run via "gradle perfTest". Each dimension of the grid is a comma-separated
+ * list given as a system property (or a "-P" property of the same name):
+ *
+ * <ul>
+ *     <li>perf.fovs: number of single-FOV inputs (default "1,4")</li>
+ *     <li>perf.sizes: width and height of each plane (default "512,2048")</li>
+ *     <li>perf.zct: planes per FOV as ZxCxT (default "1x1x1,5x3x2")</li>
+ *     <li>perf.fields: fields per well of a single-well screen instead of
+ *         separate inputs, 0 for none (default "0")</li>
+ *     <li>perf.threads: values for -j (default "1,4")</li>
+ * </ul>
+ *
+ * perf.pixelType (default "uint16") and perf.args (extra tool arguments
+ * separated by spaces) apply to all runs, perf.out names the csv.
+ */
+public class ScalingBenchmark {
+
+    private final static String HEADER = "version,timestamp,fovs,size,z,c,t,fields,threads,args,rc,"
+            + "files,mb,seconds,mb_per_s,peak_heap_mb,gc_ms,gc_count";
+
+    private final String pixelType = System.getProperty("perf.pixelType", "uint16");
+
+    private final String extra = System.getProperty("perf.args", "").trim();
+
+    private final String version = System.getProperty("perf.version", "unknown");
+
+    public static void main(String[] args) throws Exception {
+        LogbackTools.setRootLevel("error");
+        File csv = new File(System.getProperty("perf.out", "build/perf/scaling.csv"));
+        csv.getAbsoluteFile().getParentFile().mkdirs();
+        boolean header = !csv.exists();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            if (header) {
+                out.println(HEADER);
+            }
+            new ScalingBenchmark().run(out);
+        }
+        System.out.println("results appended to " + csv);
+    }
+
+    private static int[] ints(String property, String defaults) {
+        return Stream.of(System.getProperty(property, defaults).split(","))
+                .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+    }
+
+    void run(PrintWriter out) throws Exception {
+        String[] zcts = System.getProperty("perf.zct", "1x1x1,5x3x2").split(",");
+        for (int fields : ints("perf.fields", "0")) {
+            for (int fovs : fields > 0 ? new int[]{1} : ints("perf.fovs", "1,4")) {
+                for (int size : ints("perf.sizes", "512,2048")) {
+                    for (String zct : zcts) {
+                        String[] dims = zct.trim().split("x");
+                        for (int threads : ints("perf.threads", "1,4")) {
+                            String row = measure(fovs, size, dims[0], dims[1], dims[2], fields, threads);
+                            System.out.println(row);
+                            out.println(row);
+                            out.flush();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Convert one point of the grid into a temporary directory which is
+     * deleted again afterwards.
+     *
+     * @return the csv row
+     */
+    private String measure(int fovs, int size, String z, String c, String t, int fields, int threads)
+            throws Exception {
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < fovs; i++) {
+            if (fields > 0) {
+                inputs.add(fake("plates", "1", "fields", String.valueOf(fields),
+                        "sizeX", String.valueOf(size), "sizeY", String.valueOf(size),
+                        "sizeZ", z, "sizeC", c, "sizeT", t, "pixelType", pixelType));
+            } else {
+                inputs.add(fake("sizeX", String.valueOf(size), "sizeY", String.valueOf(size),
+                        "sizeZ", z, "sizeC", c, "sizeT", t, "pixelType", pixelType));
+            }
+        }
+        Path dir = Files.createTempDirectory("ScalingBenchmark");
+        Files.delete(dir);
+        List<String> args = new ArrayList<>();
+        args.add("-o");
+        args.add(dir.toString());
+        args.add("-j");
+        args.add(String.valueOf(threads));
+        if (!extra.isEmpty()) {
+            args.addAll(Arrays.asList(extra.split("\\s+")));
+        }
+        for (Path input : inputs) {
+            args.add(input.toString());
+        }
+
+        System.gc();
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+        long gcTime = -gcTime();
+        long gcCount = -gcCount();
+        long start = System.nanoTime();
+        int rc = new FOVTool().doMain(args.toArray(new String[0]));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        gcTime += gcTime();
+        gcCount += gcCount();
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heap) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+
+        long bytes = 0;
+        for (Path tiff : find("tiff", dir)) {
+            bytes += Files.size(tiff);
+        }
+        int files = find("tiff", dir).size();
+        delete(dir);
+        for (Path input : inputs) {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(input.resolveSibling(input.getFileName().toString().replaceAll("\\.ini$", "")));
+        }
+
+        double mb = bytes / (1024.0 * 1024.0);
+        return String.format("%s,%s,%d,%d,%s,%s,%s,%d,%d,\"%s\",%d,%d,%.1f,%.3f,%.1f,%.1f,%d,%d",
+                version, Instant.now(), fovs, size, z, c, t, fields, threads, extra, rc,
+                files, mb, seconds, mb / seconds, peak / (1024.0 * 1024.0), gcTime, gcCount);
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -3,17 +3,40 @@ package spacetx.tests;
 
 import com.google.common.collect.ImmutableMap;
 import loci.common.LogbackTools;
+import loci.formats.ImageReader;
+import ome.xml.model.enums.PixelType;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import spacetx.Errors;
 import spacetx.FOVTool;
+import spacetx.Naming;
+import spacetx.Progress;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static spacetx.tests.Helpers.*;
 
@@ -104,6 +127,52 @@ public class ToolTest {
         assertTool(4);
     }
 
+    @Test
+    public void testReadersLimitedAcrossInputs() throws Exception {
+        // Reads of five FOVs share two readers beyond the first of each input
+        fake = fake("series", "3", "sizeZ", "6");
+        Path extra = fake("series", "2", "sizeZ", "6");
+        try {
+            assertTool(0, extra.toString(), "--all-series", "-j", "2");
+            Assertions.assertEquals(5 * 6, matches("tiff", dir));
+        } finally {
+            extra.toFile().delete();
+        }
+    }
+
+    @Test
+    public void testInputHasMultipleSeriesAllSeries() throws Exception {
+        fake = fake("series", "3");
+        Path extra = fake("series", "2");
+        try {
+            assertTool(0, extra.toString(), "--all-series", "-j", "4");
+            Assertions.assertEquals(5, matches("_Z0_T0_C0.ome.tiff", dir));
+            Assertions.assertEquals(1, matches("fov_004_Z0_T0_C0.ome.tiff", dir));
+        } finally {
+            extra.toFile().delete();
+        }
+    }
+
+    @Test
+    public void testScheduleLargest() throws Exception {
+        fake = fake("sizeZ", "2");
+        Path larger = fake("sizeZ", "5");
+        try {
+            // FOVs are numbered by input regardless of the order they are converted in
+            assertTool(0, larger.toString(), "--schedule", "largest", "-j", "2");
+            Assertions.assertEquals(2, matches("fov_000_Z?_T0_C0.ome.tiff", dir));
+            Assertions.assertEquals(5, matches("fov_001_Z?_T0_C0.ome.tiff", dir));
+        } finally {
+            larger.toFile().delete();
+        }
+    }
+
+    @Test
+    public void testBadSchedule() {
+        fake = fake();
+        assertTool(2, "--schedule", "smallest");
+    }
+
     @Test
     public void testInputHasMultipleSeriesWithChoice() {
         fake = fake("series", "2");
@@ -126,6 +195,360 @@ public class ToolTest {
         Assertions.assertEquals(1, matches("fov_000.json", dir));
     }
 
+    @Test
+    public void testHierarchicalNaming() throws Exception {
+        fake = fake("sizeZ", "2", "sizeT", "3", "sizeC", "2");
+        assertTool(0, "-n", "hierarchical");
+        Assertions.assertEquals(12, matches("tiff", dir));
+        Assertions.assertTrue(Files.exists(dir.resolve("fov_000/r2/primary_image-fov_000_Z1_T2_C1.ome.tiff")));
+        Assertions.assertTrue(Files.exists(dir.resolve("fov_000/primary_image-fov_000.companion.ome")));
+        Assertions.assertEquals(1, grep("primary_image-fov_000.json",
+                "\"fov_000/r2/primary_image-fov_000_Z1_T2_C1.ome.tiff\"", dir));
+        Assertions.assertEquals(1, grep("primary_image-fov_000.companion.ome",
+                "FileName=\"r2/primary_image-fov_000_Z1_T2_C1.ome.tiff\"", dir));
+    }
+
+    @Test
+    public void testMultipageNaming() throws Exception {
+        fake = fake("sizeZ", "3", "sizeT", "2", "sizeC", "2");
+        assertTool(0, "-n", "multipage");
+        Assertions.assertEquals(1, matches("tiff", dir));
+        Assertions.assertEquals(1, matches("primary_image-fov_000.ome.tiff", dir));
+        Assertions.assertEquals(12, grep("primary_image-fov_000.json",
+                "\"primary_image-fov_000.ome.tiff\"", dir));
+        Assertions.assertEquals(12, grep("primary_image-fov_000.json", "\"page\"", dir));
+    }
+
+    @Test
+    public void testProjections() throws Exception {
+        fake = fake("sizeZ", "3", "sizeC", "2");
+        assertTool(0, "--projections");
+        Assertions.assertEquals(2, matches("primary_image-fov_000_max_T0_C?.ome.tiff", dir));
+        Assertions.assertEquals(2, matches("primary_image-fov_000_mean_T0_C?.ome.tiff", dir));
+        Assertions.assertEquals(1, grep("primary_image-fov_000.json", "\"projections\"", dir));
+        Assertions.assertEquals(6, grep("primary_image-fov_000.json", "\"histogram\"", dir));
+    }
+
+    @Test
+    public void testDedup() throws Exception {
+        // Fake planes differ, so nothing is linked but all planes are fingerprinted
+        fake = fake("sizeZ", "3", "sizeC", "2");
+        assertTool(0, "--dedup");
+        Assertions.assertEquals(6, matches("tiff", dir));
+        Assertions.assertEquals(0, grep("primary_image-fov_000.json", "does-not-exist", dir));
+    }
+
+    @Test
+    public void testDedupIdenticalPlanes() throws Exception {
+        // Fake planes only differ in the boxes of their top 10 rows, so
+        // cropping below them leaves every plane identical
+        fake = fake("sizeZ", "3", "sizeC", "2");
+        assertTool(0, "--dedup", "--crop", "0,16,64,16");
+        List<Path> tiffs = find("_T0_C?.ome.tiff", dir);
+        Assertions.assertEquals(6, tiffs.size());
+        Path original = find("_Z0_T0_C0.ome.tiff", dir).get(0);
+        for (Path tiff : tiffs) {
+            Assertions.assertTrue(Files.isSameFile(original, tiff), tiff.toString());
+        }
+        String json = new String(Files.readAllBytes(find("primary_image-fov_000.json", dir).get(0)));
+        Matcher sha = Pattern.compile("\"sha256\"\\s*:\\s*\"([0-9a-f]+)\"").matcher(json);
+        Set<String> hashes = new HashSet<>();
+        int tiles = 0;
+        while (sha.find()) {
+            hashes.add(sha.group(1));
+            tiles++;
+        }
+        Assertions.assertEquals(6, tiles);
+        Assertions.assertEquals(1, hashes.size());
+        // Every UUID entry of the companion now names the original file
+        String companion = new String(Files.readAllBytes(find("primary_image-fov_000.companion.ome", dir).get(0)));
+        Matcher uuid = Pattern.compile("<UUID FileName=\"([^\"]*)\">").matcher(companion);
+        int entries = 0;
+        while (uuid.find()) {
+            Assertions.assertEquals(original.getFileName().toString(), uuid.group(1));
+            entries++;
+        }
+        Assertions.assertEquals(6, entries);
+    }
+
+    @Test
+    public void testDedupWithoutTiffs() throws Exception {
+        fake = fake("sizeZ", "3", "sizeC", "2");
+        assertTool(0, "--dedup", "--no-tiffs");
+        Assertions.assertEquals(0, matches("tiff", dir));
+        Assertions.assertEquals(6, grep("primary_image-fov_000.json", "does-not-exist", dir));
+    }
+
+    @Test
+    public void testSelection() throws Exception {
+        fake = fake("sizeZ", "3", "sizeC", "2");
+        assertTool(0, "--crop", "0,0,8,8", "--z-range", "1-2", "--c-range", "1");
+        Assertions.assertEquals(2, matches("tiff", dir));
+        Assertions.assertTrue(grep("primary_image-fov_000.companion.ome", "SizeX=\"8\"", dir) > 0);
+    }
+
+    @Test
+    public void testSelectionOfLaterSeries() throws Exception {
+        // Sizes of later series come from the single-image copy of the metadata
+        fake = fake("series", "3", "sizeZ", "3");
+        assertTool(0, "--all-series", "--crop", "0,0,8,8", "--z-range", "1-2");
+        Assertions.assertEquals(3 * 2, matches("tiff", dir));
+        Assertions.assertEquals(1, matches("primary_image-fov_002.json", dir));
+        Assertions.assertTrue(grep("primary_image-fov_002.companion.ome", "SizeX=\"8\"", dir) > 0);
+    }
+
+    @Test
+    public void testBadSelection() {
+        fake = fake("sizeZ", "3");
+        assertTool(15, "--z-range", "2-5");
+    }
+
+    @Test
+    public void testHugeSelection() {
+        // Only checked against the size of the input, without listing every index
+        fake = fake("sizeZ", "3");
+        assertTool(15, "--z-range", "0-2000000000");
+    }
+
+    @Test
+    public void testFollow() throws Exception {
+        // Every file is complete from the start, so with no settle or idle
+        // time they are converted after the second poll which then ends.
+        // Files appearing and changing over time are covered by FollowerTest.
+        Path acquisition = Files.createTempDirectory("ToolTestFollow");
+        fake = acquisition;
+        try {
+            Files.write(acquisition.resolve("first&sizeZ=2&.fake"), new byte[]{});
+            Files.write(acquisition.resolve("ignored.txt"), new byte[]{});
+            Files.createDirectories(acquisition.resolve("round2"));
+            Files.write(acquisition.resolve("round2/second&sizeZ=3&.fake"), new byte[]{});
+            assertTool(0, "--follow", "*.fake", "--follow-settle", "0", "--follow-idle", "0");
+            Assertions.assertEquals(2, matches("fov_000_Z?_T0_C0.ome.tiff", dir));
+            Assertions.assertEquals(3, matches("fov_001_Z?_T0_C0.ome.tiff", dir));
+            Assertions.assertEquals(1, grep("primary_image.json", "fov_001", dir));
+        } finally {
+            delete(acquisition);
+        }
+    }
+
+    @Test
+    public void testFollowNeedsDirectory() {
+        fake = fake();
+        assertTool(12, "--follow", "*.fake");
+    }
+
+    @Test
+    public void testPixelType() throws Exception {
+        fake = fake("sizeZ", "2", "sizeC", "2", "pixelType", "float");
+        assertTool(0, "--pixel-type", "uint8", "--rescale", "1%,99%", "--projections");
+        Assertions.assertEquals(4, matches("tiff", dir));
+        Assertions.assertTrue(grep("primary_image-fov_000.companion.ome", "Type=\"uint8\"", dir) > 0);
+    }
+
+    @Test
+    public void testRescaleDirect() throws Exception {
+        fake = fake("sizeZ", "2", "pixelType", "uint16");
+        assertTool(0, "--rescale", "0,1000", "--direct", "--bin", "2");
+        Assertions.assertEquals(2, matches("tiff", dir));
+    }
+
+    @Test
+    public void testRescaleBinnedSum() throws Exception {
+        // Fake pixels are a gradient along X, so summing 2x2 bins quadruples
+        // them. Percentiles must be taken after binning or most pixels clamp.
+        fake = fake("pixelType", "uint16");
+        assertTool(0, "--bin", "2", "--bin-mode", "sum", "--pixel-type", "uint8", "--rescale", "0%,100%");
+        ImageReader reader = new ImageReader();
+        byte[] pixels;
+        try {
+            reader.setId(find("_Z0_T0_C0.ome.tiff", dir).get(0).toString());
+            pixels = reader.openBytes(0);
+        } finally {
+            reader.close();
+        }
+        Assertions.assertEquals(256 * 256, pixels.length);
+        int saturated = 0;
+        for (byte pixel : pixels) {
+            if ((pixel & 0xff) == 255) {
+                saturated++;
+            }
+        }
+        Assertions.assertTrue(saturated < pixels.length / 10, saturated + " saturated pixels");
+    }
+
+    @Test
+    public void testBadRescaling() {
+        fake = fake();
+        assertTool(17, "--rescale", "99%,1%");
+    }
+
+    @Test
+    public void testFailFast() throws Exception {
+        fake = fake("sizeZ", "3");
+        Path small = fake("sizeX", "16", "sizeY", "16");
+        try {
+            // The crop does not fit the second input, which stops the whole conversion
+            assertTool(15, small.toString(), "--crop", "0,0,32,32", "-j", "2");
+            Assertions.assertEquals(0, matches("fov_001*", dir));
+        } finally {
+            small.toFile().delete();
+        }
+    }
+
+    @Test
+    public void testBuilder() throws Exception {
+        fake = fake("sizeZ", "2");
+        Path extra = fake("sizeC", "3");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Map<Integer, CompletableFuture<Integer>> fovs = new ConcurrentHashMap<>();
+        AtomicInteger planes = new AtomicInteger();
+        try {
+            FOVTool api = FOVTool.builder()
+                    .input(fake.toString(), extra.toString())
+                    .output(dir.toFile())
+                    .progress(new Progress() {
+                        @Override
+                        public void fovStarted(int fov, String input, int series, int planeCount,
+                                               CompletableFuture<Integer> done) {
+                            fovs.put(fov, done);
+                        }
+
+                        @Override
+                        public void planeWritten(int fov, int plane, long bytes) {
+                            planes.incrementAndGet();
+                        }
+                    })
+                    .build();
+            Assertions.assertEquals(0, api.start(executor).get().intValue());
+            Assertions.assertEquals(2, fovs.size());
+            Assertions.assertTrue(fovs.get(1).isDone());
+            Assertions.assertEquals(2 + 3, planes.get());
+            Assertions.assertEquals(2 + 3, matches("tiff", dir));
+            Assertions.assertEquals(1, matches("experiment.json", dir));
+        } finally {
+            executor.shutdownNow();
+            extra.toFile().delete();
+        }
+    }
+
+    @Test
+    public void testCancelRemovesPartialFOV() throws Exception {
+        fake = fake("sizeZ", "2", "sizeC", "2");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            AtomicReference<FOVTool> api = new AtomicReference<>();
+            api.set(FOVTool.builder()
+                    .input(fake.toString())
+                    .output(dir.toFile())
+                    .naming(Naming.hierarchical)
+                    .projections(true)
+                    .progress(new Progress() {
+                        @Override
+                        public void planeWritten(int fov, int plane, long bytes) {
+                            // By now the projections of the first channel exist
+                            if (plane == 1) {
+                                api.get().cancel();
+                            }
+                        }
+                    })
+                    .build());
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                    () -> api.get().start(executor).get());
+            Assertions.assertTrue(e.getCause() instanceof CancellationException, e.getCause().toString());
+            Assertions.assertEquals(0, matches("tiff", dir));
+            Assertions.assertFalse(Files.exists(dir.resolve("fov_000")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBuilderWithoutOutput() {
+        fake = fake();
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                () -> FOVTool.builder().input(fake.toString()).build().start(ForkJoinPool.commonPool()).get());
+        Assertions.assertEquals(10, ((Errors.UsageException) e.getCause()).rc);
+    }
+
+    @Test
+    public void testBuilderChecksOptions() throws Exception {
+        fake = fake("sizeZ", "4", "pixelType", "uint16");
+        Assertions.assertEquals(15, Assertions.assertThrows(Errors.UsageException.class,
+                () -> FOVTool.builder().input(fake.toString()).zRange(2, 1).build()).rc);
+        Assertions.assertEquals(15, Assertions.assertThrows(Errors.UsageException.class,
+                () -> FOVTool.builder().input(fake.toString()).cRange(-1, 0).build()).rc);
+        Assertions.assertEquals(17, Assertions.assertThrows(Errors.UsageException.class,
+                () -> FOVTool.builder().input(fake.toString()).rescale(100, 10).build()).rc);
+        Assertions.assertEquals(17, Assertions.assertThrows(Errors.UsageException.class,
+                () -> FOVTool.builder().input(fake.toString()).pixelType(PixelType.BIT).build()).rc);
+
+        FOVTool api = FOVTool.builder()
+                .input(fake.toString())
+                .output(dir.toFile())
+                .zRange(0, 0)
+                .zRange(2, 3)
+                .pixelType(PixelType.UINT8)
+                .rescale(0, 1000)
+                .build();
+        Assertions.assertEquals(0, api.start(ForkJoinPool.commonPool()).get().intValue());
+        Assertions.assertEquals(3, matches("tiff", dir));
+    }
+
+    @Test
+    public void testStripSize() throws Exception {
+        // 2MB planes are streamed in 1MB strips
+        fake = fake("sizeX", "2048", "sizeY", "1024", "sizeZ", "2", "sizeC", "2");
+        assertTool(0, "--strip-size", "1", "--projections");
+        Assertions.assertEquals(4 + 4, matches("tiff", dir));
+        Assertions.assertEquals(0, grep("primary_image-fov_000.json", "does-not-exist", dir));
+    }
+
+    @Test
+    public void testBadStripSize() {
+        fake = fake();
+        assertTool(12, "--strip-size", "0");
+    }
+
+    @Test
+    public void testBinning() throws Exception {
+        fake = fake("sizeZ", "2", "sizeX", "64", "sizeY", "32");
+        assertTool(0, "--bin", "4", "--bin-mode", "max");
+        Assertions.assertEquals(2, matches("tiff", dir));
+        Assertions.assertTrue(grep("primary_image-fov_000.companion.ome", "SizeX=\"16\"", dir) > 0);
+    }
+
+    @Test
+    public void testBinningDirect() throws Exception {
+        fake = fake("sizeZ", "2", "sizeX", "64", "sizeY", "32");
+        assertTool(0, "--bin", "2", "--direct");
+        Assertions.assertTrue(grep("primary_image-fov_000.companion.ome", "SizeY=\"16\"", dir) > 0);
+    }
+
+    @Test
+    public void testBadBinning() {
+        fake = fake();
+        assertTool(16, "--bin", "2", "--bin-mode", "median");
+    }
+
+    @Test
+    public void testDirect() throws Exception {
+        fake = fake("sizeZ", "3", "sizeT", "2", "sizeC", "2");
+        assertTool(0, "--direct");
+        Assertions.assertEquals(12, matches("tiff", dir));
+        Assertions.assertEquals(1, grep("primary_image-fov_000.companion.ome",
+                "FileName=\"primary_image-fov_000_Z1_T1_C1.ome.tiff\"", dir));
+    }
+
+    @Test
+    public void testDirectMultipage() throws Exception {
+        fake = fake("sizeZ", "3", "sizeT", "2", "sizeC", "2");
+        assertTool(0, "--direct", "-n", "multipage");
+        Assertions.assertEquals(1, matches("primary_image-fov_000.ome.tiff", dir));
+        Assertions.assertTrue(grep("primary_image-fov_000.companion.ome",
+                "FileName=\"primary_image-fov_000.ome.tiff\"", dir) > 0);
+        Assertions.assertEquals(12, grep("primary_image-fov_000.json", "\"page\"", dir));
+    }
+
     @Test
     public void testNegativeFOV() {
         fake = fake();
@@ -140,15 +563,21 @@ public class ToolTest {
     }
 
     @Test
-    public void testHCSFailsOnTooManyPlates() {
+    public void testHCSAllPlates() throws Exception {
         fake = fake("plates", "2");
-        assertTool(6);
+        assertTool(0);
+        Assertions.assertEquals(2, matches("_Z0_T0_C0.ome.tiff", dir));
+        Assertions.assertEquals(1, grep("primary_image-fov_001.json", "\"well\": \"A01\"", dir));
     }
 
     @Test
-    public void testHCSFailsOnTooManyWells() {
-        fake = fake("plates", "1", "plateRows", "2");
-        assertTool(7);
+    public void testHCSAllWells() throws Exception {
+        fake = fake("plates", "1", "plateRows", "2", "fields", "2");
+        assertTool(0);
+        Assertions.assertEquals(4, matches("_Z0_T0_C0.ome.tiff", dir));
+        // FOVs are ordered by well and then field
+        Assertions.assertEquals(1, grep("primary_image-fov_002.json", "\"well\": \"B01\"", dir));
+        Assertions.assertEquals(1, grep("primary_image-fov_003.json", "\"field\": 1", dir));
     }
 
     @Test
@@ -179,6 +608,34 @@ public class ToolTest {
                 grep("primary_image-fov_000.json", "444", dir) >= 1);
     }
 
+    @Test
+    public void testHCSPositionsExport() throws Exception {
+        fake = fake(
+                ImmutableMap.<String, String>builder().put("plates", "1").put("fields", "2").build(),
+                ImmutableMap.<Integer, Map<String, String>>builder().put(1,
+                    ImmutableMap.<String, String>builder()
+                            .put("PositionX_0", "444")
+                            .put("PositionY_0", "555").build()).build());
+        assertTool(0, "--positions");
+        Assertions.assertEquals(1, grep("primary_image-fov_positions.csv", "fov,series,plane", dir));
+        Assertions.assertEquals(1, grep("primary_image-fov_positions.csv", "1,1,0,0,0,0,444.0,555.0,", dir));
+    }
+
+    @Test
+    public void testPositionsExportWithSelection() throws Exception {
+        // The selection is written from a single-image copy of the metadata,
+        // but rows still name the series of the input
+        fake = fake(
+                ImmutableMap.<String, String>builder().put("plates", "1").put("fields", "2").build(),
+                ImmutableMap.<Integer, Map<String, String>>builder().put(1,
+                    ImmutableMap.<String, String>builder()
+                            .put("PositionX_0", "444")
+                            .put("PositionY_0", "555").build()).build());
+        assertTool(0, "--positions", "--crop", "0,0,8,8");
+        Assertions.assertEquals(1, grep("primary_image-fov_positions.csv", "1,1,0,0,0,0,444.0,555.0,", dir));
+        Assertions.assertEquals(1, grep("primary_image-fov_positions.csv", "0,0,0,0,0,0,", dir));
+    }
+
     @Test
     public void testMultipleScreensFail() throws Exception {
         fake = fake("plates", "1");
@@ -231,12 +688,231 @@ public class ToolTest {
         }
     }
 
+    @Test
+    public void testHeterogeneousFOVsInParallel() throws Exception {
+        fake = fake("sizeZ", "6", "sizeT", "2", "sizeC", "3");
+        Path extra = fake();
+        Path extra2 = fake("sizeZ", "2");
+        try {
+            assertTool(0,
+                    extra.toString(), extra2.toString(),
+                    "-j" ,"3");
+            Assertions.assertEquals(36 + 1 + 2, matches("tiff", dir));
+            Assertions.assertEquals(1, matches("fov_000_Z5_T1_C2.ome.tiff", dir));
+            Assertions.assertEquals(1, matches("fov_002_Z1_T0_C0.ome.tiff", dir));
+            Assertions.assertEquals(3, grep("primary_image-fov.json", "primary_image-fov_00", dir));
+        } finally {
+            extra.toFile().delete();
+            extra2.toFile().delete();
+        }
+    }
+
     @Test
     public void testHCSInParallel() {
         fake = fake("plates", "1", "fields", "12");
         assertTool(0, "-j", "12");
     }
 
+    @Test
+    public void testPlanCreatesNoOutput() {
+        fake = fake("sizeZ", "3");
+        assertTool(0, "--plan");
+        Assertions.assertFalse(dir.toFile().exists());
+    }
+
+    @Test
+    public void testAutoThreads() throws Exception {
+        fake = fake();
+        Path extra = fake();
+        try {
+            assertTool(0, extra.toString(), "-j", "auto");
+            Assertions.assertEquals(2, matches("tiff", dir));
+        } finally {
+            extra.toFile().delete();
+        }
+    }
+
+    @Test
+    public void testUnreadableInputWithAutoThreads() throws Exception {
+        // Inputs parsed up-front fail with the same return code as otherwise
+        fake = fake();
+        Path bad = Files.createTempFile("ToolTest", ".unknown");
+        try {
+            assertTool(2, bad.toString());
+            tool = new FOVTool();
+            delete(dir);
+            assertTool(2, bad.toString(), "-j", "auto");
+            tool = new FOVTool();
+            delete(dir);
+            assertTool(2, bad.toString(), "--plan");
+        } finally {
+            bad.toFile().delete();
+        }
+    }
+
+    @Test
+    public void testBadThreads() {
+        fake = fake();
+        assertTool(14, "-j", "0");
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        fake = fake("sizeZ", "2");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AtomicReference<FOVTool> api = new AtomicReference<>();
+        AtomicReference<String> scraped = new AtomicReference<>();
+        try {
+            api.set(FOVTool.builder()
+                    .input(fake.toString())
+                    .output(dir.toFile())
+                    .metrics(0)
+                    .progress(new Progress() {
+                        @Override
+                        public void fovDone(int fov, Throwable error) {
+                            // The server stops with the conversion, so scrape once the planes are written
+                            String host = InetAddress.getLoopbackAddress().getHostAddress();
+                            try (Scanner scanner = new Scanner(new URL("http", host,
+                                    api.get().getMetricsPort(), "/metrics").openStream(), "UTF-8")) {
+                                scraped.set(scanner.useDelimiter("\\A").next());
+                            } catch (IOException e) {
+                                scraped.set(e.toString());
+                            }
+                        }
+                    })
+                    .build());
+            Assertions.assertEquals(0, api.get().start(executor).get().intValue());
+        } finally {
+            executor.shutdownNow();
+        }
+        Assertions.assertEquals(2, matches("tiff", dir));
+        String metrics = scraped.get();
+        Assertions.assertNotNull(metrics);
+        Assertions.assertTrue(metrics.contains("\nspacetx_planes_written_total 2\n"), metrics);
+        for (String phase : new String[]{"read", "write"}) {
+            for (String quantile : new String[]{"0.5", "0.9", "0.99"}) {
+                Pattern pattern = Pattern.compile(String.format(
+                        "spacetx_phase_seconds\\{phase=\"%s\",quantile=\"%s\"\\} [0-9.E-]+\n",
+                        phase, quantile));
+                Assertions.assertTrue(pattern.matcher(metrics).find(), phase + " " + quantile + ": " + metrics);
+            }
+        }
+        Assertions.assertTrue(metrics.contains("spacetx_phase_seconds_count{phase=\"write\"} 2\n"), metrics);
+
+        // The thread answering scrapes ends with the conversion
+        for (int i = 0; i < 100 && metricsThreads() > 0; i++) {
+            Thread.sleep(50);
+        }
+        Assertions.assertEquals(0, metricsThreads());
+    }
+
+    private static long metricsThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("spacetx-metrics"))
+                .count();
+    }
+
+    @Test
+    public void testBadMetricsPort() {
+        fake = fake();
+        assertTool(12, "--metrics", "-1");
+    }
+
+    @Test
+    public void testTileCache() throws Exception {
+        fake = fake("sizeZ", "2");
+        // Every run writes to a new directory under the one removed on teardown
+        Path root = dir;
+        Path cache = root.resolve("cache");
+        try {
+            dir = root.resolve("first");
+            assertTool(0, "--tile-cache", cache.toString());
+            Assertions.assertEquals(2, matches(".pixels", cache));
+            Assertions.assertEquals(2, matches(".key", cache));
+
+            // Overwrite the cached pixels so that planes taken from the cache can be told apart
+            for (Path blob : find(".pixels", cache)) {
+                byte[] marker = new byte[(int) Files.size(blob)];
+                Arrays.fill(marker, (byte) 0x7f);
+                Files.write(blob, marker);
+            }
+
+            // Planes are taken from the cache for a different FOV and writer
+            dir = root.resolve("fov3");
+            tool = new FOVTool();
+            assertTool(0, "--tile-cache", cache.toString(), "-f", "3");
+            Assertions.assertEquals(2, matches("fov_003_Z?_T0_C0.ome.tiff", dir));
+            assertCached(dir);
+            dir = root.resolve("fov4");
+            tool = new FOVTool();
+            assertTool(0, "--tile-cache", cache.toString(), "-f", "4", "--direct", "--dedup");
+            Assertions.assertEquals(2, matches("fov_004_Z?_T0_C0.ome.tiff", dir));
+            assertCached(dir);
+            Assertions.assertEquals(2, matches(".pixels", cache));
+
+            // Binned planes are different
+            dir = root.resolve("bin");
+            tool = new FOVTool();
+            assertTool(0, "--tile-cache", cache.toString(), "--bin", "2");
+            Assertions.assertEquals(4, matches(".pixels", cache));
+        } finally {
+            dir = root;
+        }
+    }
+
+    /**
+     * Check that every plane written to the directory holds the marker
+     * pixels of the tampered tile cache rather than those of the input.
+     */
+    private static void assertCached(Path output) throws Exception {
+        for (Path tiff : find("ome.tiff", output)) {
+            ImageReader reader = new ImageReader();
+            try {
+                reader.setId(tiff.toString());
+                for (byte pixel : reader.openBytes(0)) {
+                    Assertions.assertEquals((byte) 0x7f, pixel, tiff.toString());
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void testTrace() throws Exception {
+        fake = fake("sizeZ", "2");
+        assertTool(0, "--trace", dir.resolve("trace.json").toString());
+        Assertions.assertEquals(1, grep("trace.json", "traceEvents", dir));
+        Assertions.assertEquals(1, grep("trace.json", "populatePixels", dir));
+        Assertions.assertEquals(1, grep("trace.json", "fov 000", dir));
+    }
+
+    @Test
+    public void testMetadataCache() throws Exception {
+        fake = fake("sizeZ", "2");
+        // Every run writes to a new directory under the one removed on teardown
+        Path root = dir;
+        Path cache = root.resolve("cache");
+        try {
+            dir = root.resolve("first");
+            assertTool(0, "--cache", cache.toString());
+            Assertions.assertEquals(1, matches(".json", cache));
+
+            // Regenerate only the json from the cached metadata, without parsing the input
+            dir = root.resolve("json");
+            tool = new FOVTool();
+            Path trace = root.resolve("trace.json");
+            assertTool(0, "--cache", cache.toString(), "--no-tiffs", "--trace", trace.toString());
+            Assertions.assertEquals(1, matches("fov_000.json", dir));
+            Assertions.assertEquals(0, matches("tiff", dir));
+            Assertions.assertEquals(1, matches(".json", cache));
+            Assertions.assertEquals(1, grep("trace.json", "traceEvents", root));
+            Assertions.assertEquals(0, grep("trace.json", "populatePixels", root));
+        } finally {
+            dir = root;
+        }
+    }
+
     /**
      * Delete the created resources under $TMPDIR unless cleanup was set to false.
      */
@@ -244,7 +920,7 @@ public class ToolTest {
     public void teardown() {
         fake.toFile().delete();
         if (cleanup) {
-            dir.toFile().delete();
+            delete(dir);
         } else {
             System.out.println("Not deleting output directory:");
             System.out.println(dir);